@@ -1,23 +1,32 @@
 package it.unitn.ds;
 
+import it.unitn.ds.Workload.DestinationSelector;
 import it.unitn.ds.net.NetOverlay;
 import it.unitn.ds.net.NetOverlay.Message;
+import it.unitn.ds.net.NetOverlay.SnapshotDone;
 import it.unitn.ds.net.NetOverlay.Token;
 import it.unitn.ds.net.NetOverlay.Transfer;
+import it.unitn.ds.net.SharedRuntime;
 import it.unitn.ds.net.UDPNetOverlay;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Branch implementation that performs the following actions: - Incoming
@@ -36,56 +45,245 @@ public class Branch {
 	 */
 	public static final int MAX_TRANSFER = 100;
 
-	private final ScheduledExecutorService MAIN_LOOP = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	/**
+	 * Maximum number of incoming messages processed in a row before giving
+	 * control back to the other branch activities
+	 */
+	public static final int MAX_DRAIN_BATCH = 64;
 
-		@Override
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(r, "Branch Looper");
-			t.setDaemon(true);
-			return t;
-		}
-	});
+	/**
+	 * Every FULL_RECORDING_PERIOD local recordings the balances of all the
+	 * accounts are saved, the other recordings only save the accounts changed
+	 * since the previous one
+	 */
+	public static final int FULL_RECORDING_PERIOD = 16;
+
+	/**
+	 * Maximum number of transfers of a shard waiting to be delivered, with an
+	 * open loop workload the transfers due beyond it are skipped
+	 */
+	public static final int MAX_PENDING_TRANSFERS = 1024;
+
+	private final Executor MAIN_LOOP;
+
+	// Executor owned by the branch, null if shared with other branches and
+	// released with the runtime or if the branch runs on its own thread
+	private final ExecutorService ownedLoop;
+
+	// Thread running the blocking loop, null if activities are executor based
+	private final BranchThread loopThread;
+
+	// Outgoing transfer being delivered by the blocking loop
+	private CompletableFuture<Message> pendingTransfer;
+	private int pendingSlot;
+	private long pendingAmount;
 
 	private final int localId;
 	private final Map<Integer, InetSocketAddress> branches;
 
-	private final NetOverlay overlay = new UDPNetOverlay();
+	private final Topology topology;
+
+	// Branches receiving transfers from this one
+	private final List<Integer> neighbours;
+
+	// Branches exchanging tokens with this one
+	private final List<Integer> tokenPeers;
+
+	// Links in the spanning tree, the parent is null for the root
+	private final Integer treeParent;
+	private final List<Integer> treeChildren;
+
+	private final NetOverlay overlay;
 	private final SnapshotHelper snapshot = new SnapshotHelper();
-	private final Random rand = new Random();
 
-	// Branches random selection
-	private List<Integer> randBranches;
-	private int nextBranch = 0;
+	// Number of accounts held by every branch
+	private final int accounts;
+
+	// Accounts partitions, account a belongs to shard a % shards.length
+	private final Shard[] shards;
+
+	private final Workload workload;
 
-	// Money available (not reserved) that can be used for transfers
-	private long availableAmounts = INITIAL_BALANCE;
+	// Local recordings done, ID of the last recorded snapshot and whether it
+	// was reported to the collector: the next recording is a delta of it only
+	// if it is in the log
+	private int recordings = 0;
+	private long lastRecordedId;
+	private boolean lastRecordingReported = false;
 
-	// Money reserved for pending outgoing transfers
-	private long reservedAmounts = 0;
+	private final SnapshotAlgorithm algorithm;
+
+	// Lai-Yang: last recorded snapshot and money received from each neighbour,
+	// in the order of the neighbours list
+	private long epoch = Transfer.NO_EPOCH;
+	private final long[] receivedAmounts;
+
+	// Receives the local snapshots
+	private volatile SnapshotCollector collector = GlobalSnapshotCollector.getLocal();
+
+	private final SnapshotMetrics metrics = new SnapshotMetrics();
 
 	/**
-	 * Start a new branch
+	 * Start a new branch with the given settings. All branches must have the
+	 * same number of accounts and use the same topology and algorithm.
 	 * 
 	 * @param localId
 	 * @param branches
-	 * @param initialBalance
+	 * @param config
 	 * @return A future is completed once the branch is started
 	 */
-	public static CompletableFuture<Branch> start(int localId, Map<Integer, InetSocketAddress> branches) {
+	public static CompletableFuture<Branch> start(int localId, Map<Integer, InetSocketAddress> branches, Config config) {
+		if (config.accounts < 1 || config.shards < 1 || config.shards > config.accounts)
+			throw new IllegalArgumentException("Invalid accounts partitioning");
+
+		// The blocking loop processes a single shard in closed loop
+		if (config.ownThread && (config.shards > 1 || config.workload.isOpenLoop()))
+			throw new IllegalArgumentException("Branch thread requires a single shard and a closed loop workload");
+
+		NetOverlay overlay = (config.overlay != null) ? config.overlay : (config.runtime != null) ? new UDPNetOverlay(config.runtime) : new UDPNetOverlay();
 
-		Branch b = new Branch(localId, branches);
+		// A branch running on its own thread is not pinned to the runtime
+		// executors, only its overlay shares the runtime threads
+		Executor mainLoop = null;
+		ExecutorService ownedLoop = null;
+		if (config.runtime != null && !config.ownThread)
+			mainLoop = config.runtime.getBranchExecutor(localId);
+		else if (!config.ownThread)
+			mainLoop = ownedLoop = newLoopExecutor("Branch Looper");
+
+		Branch b = new Branch(localId, branches, overlay, mainLoop, ownedLoop, config);
 
 		return b.overlay.start(localId, branches).thenApply(b::startActivity);
 	}
 
-	private Branch(int localId, Map<Integer, InetSocketAddress> branches) {
+	/**
+	 * @return A single thread executor running the tasks of a branch or of
+	 *         one of its shards
+	 */
+	private static ExecutorService newLoopExecutor(String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Settings of a branch, the setters return the same instance
+	 */
+	public static class Config {
+
+		NetOverlay overlay;
+		int accounts = 1;
+		int shards = 1;
+		Workload workload = Workload.CLOSED_LOOP;
+		Topology topology = Topology.COMPLETE;
+		SnapshotAlgorithm algorithm = SnapshotAlgorithm.CHANDY_LAMPORT;
+		SharedRuntime runtime;
+		boolean ownThread = false;
+
+		/**
+		 * @param overlay
+		 *            Overlay used to communicate, UDP if not set
+		 */
+		public Config overlay(NetOverlay overlay) {
+			this.overlay = overlay;
+			return this;
+		}
+
+		/**
+		 * @param accounts
+		 *            Number of accounts, the initial balance is split among
+		 *            them
+		 * @param shards
+		 *            Number of accounts partitions, each processed by its own
+		 *            thread (or runtime executor) if more than one
+		 */
+		public Config accounts(int accounts, int shards) {
+			this.accounts = accounts;
+			this.shards = shards;
+			return this;
+		}
+
+		/**
+		 * @param workload
+		 *            Transfers issued by the branch, the offered rate is split
+		 *            among the shards
+		 */
+		public Config workload(Workload workload) {
+			this.workload = workload;
+			return this;
+		}
+
+		/**
+		 * @param topology
+		 *            Channels carrying transfers and snapshot tokens
+		 */
+		public Config topology(Topology topology) {
+			this.topology = topology;
+			return this;
+		}
+
+		public Config algorithm(SnapshotAlgorithm algorithm) {
+			this.algorithm = algorithm;
+			return this;
+		}
+
+		/**
+		 * @param runtime
+		 *            Runtime whose executors run the branch activities, the
+		 *            branch and each of its shards are pinned to one of them.
+		 *            The default overlay uses its event loops and timer
+		 */
+		public Config runtime(SharedRuntime runtime) {
+			this.runtime = runtime;
+			return this;
+		}
+
+		/**
+		 * @param ownThread
+		 *            Run the branch on its own thread, virtual if supported by
+		 *            the JVM, processing messages and transfers in a blocking
+		 *            loop without executor hand-offs. It is not pinned to the
+		 *            executors of the runtime, if any
+		 */
+		public Config ownThread(boolean ownThread) {
+			this.ownThread = ownThread;
+			return this;
+		}
+	}
+
+	private Branch(int localId, Map<Integer, InetSocketAddress> branches, NetOverlay overlay, Executor mainLoop, ExecutorService ownedLoop, Config config) {
 		this.localId = localId;
 		this.branches = branches;
+		this.topology = config.topology;
+		this.neighbours = topology.neighbours(localId, branches.keySet());
+		this.tokenPeers = topology.tokenPeers(localId, branches.keySet());
+		this.treeParent = topology.treeParent(localId, branches.keySet());
+		this.treeChildren = topology.treeChildren(localId, branches.keySet());
+		this.algorithm = config.algorithm;
+		this.receivedAmounts = new long[neighbours.size()];
+		this.overlay = overlay;
+		this.ownedLoop = ownedLoop;
+		this.accounts = config.accounts;
+		this.workload = config.workload;
+
+		if (config.ownThread) {
+			loopThread = new BranchThread("Branch " + localId, this::runLoopStep);
+			MAIN_LOOP = loopThread;
+		} else {
+			loopThread = null;
+			MAIN_LOOP = mainLoop;
+		}
 
-		// Initialize random branches selection
-		randBranches = new ArrayList<Integer>(branches.keySet());
-		randBranches.remove(localId);
-		Collections.shuffle(randBranches);
+		// A single shard is processed by the branch thread itself
+		this.shards = new Shard[config.shards];
+		for (int i = 0; i < shards.length; i++)
+			this.shards[i] = new Shard(i, config.runtime);
 	}
 
 	private Branch startActivity(Void v) {
@@ -93,117 +291,283 @@ public class Branch {
 		if (branches.size() == 1)
 			return this;
 
-		// Triggers message processing once the first message arrives
-		overlay.receiveMessage().thenAcceptAsync(inMsg -> processMessage(inMsg), MAIN_LOOP);
+		if (loopThread != null) {
+			// Incoming messages wake up the loop thread directly
+			overlay.setMessageListener(loopThread::wake, Runnable::run);
+			loopThread.start();
+			return this;
+		}
+
+		// Triggers message processing when messages arrive
+		overlay.setMessageListener(this::processMessages, MAIN_LOOP);
 
-		// Start random money transfers transmission
-		MAIN_LOOP.execute(this::sendRandomTransfer);
+		// Start random money transfers transmission from every shard
+		for (Shard shard : shards)
+			shard.start();
 		return this;
 	}
 
+	/**
+	 * Single iteration of the blocking loop: processes a batch of incoming
+	 * messages, settles the delivered transfer and starts the next one
+	 * 
+	 * @return false if there was nothing to do
+	 */
+	private boolean runLoopStep() {
+		boolean progress = overlay.drainMessages(MAX_DRAIN_BATCH, this::processMessage) > 0;
+
+		// The loop thread processes the only shard
+		Shard shard = shards[0];
+
+		if (pendingTransfer != null && pendingTransfer.isDone()) {
+			shard.transferCompleted(pendingSlot, pendingAmount, !pendingTransfer.isCompletedExceptionally());
+			pendingTransfer = null;
+			progress = true;
+		}
+
+		// Without available money wait for incoming transfers
+		if (pendingTransfer == null && (pendingSlot = shard.pickAccount()) >= 0) {
+			shard.generator.transferOffered();
+			pendingAmount = shard.reserveRandomAmount(pendingSlot);
+			pendingTransfer = shard.send(pendingAmount);
+			pendingTransfer.whenComplete((t, ex) -> loopThread.wake());
+			progress = true;
+		}
+
+		return progress;
+	}
+
+	private void processMessages() {
+		// More messages pending: continue after the other queued activities
+		if (overlay.drainMessages(MAX_DRAIN_BATCH, this::processMessage) == MAX_DRAIN_BATCH)
+			MAIN_LOOP.execute(this::processMessages);
+	}
+
 	private void processMessage(Message m) {
 
 		if (m instanceof Transfer)
 			processTransfer((Transfer) m);
-		else
+		else if (m instanceof Token)
 			processToken((Token) m);
+		else
+			processSnapshotDone((SnapshotDone) m);
+
+		// Return the message to the network stack pool
+		m.release();
+	}
 
-		// Reschedule for receiving the next message
-		overlay.receiveMessage().thenAcceptAsync(inMsg -> processMessage(inMsg), MAIN_LOOP);
+	private void processSnapshotDone(SnapshotDone m) {
+		snapshot.subtreeDone(m.getSenderId(), m.getSnapshotId(), m.getTotal(), m.getBranches());
 	}
 
 	private void processTransfer(Transfer m) {
-		// If snapshot is active the transfer may be counted
-		snapshot.newTransferReceived(m.getSenderId(), m.getAmount());
+		if (algorithm == SnapshotAlgorithm.LAI_YANG) {
+			// Sent after the sender recorded a newer snapshot: record it
+			// before the transfer is processed
+			if (m.getEpoch() > epoch)
+				recordLaiYangState(m.getEpoch(), null);
+
+			int i = Collections.binarySearch(neighbours, m.getSenderId());
+			if (i >= 0)
+				receivedAmounts[i] += m.getAmount();
+		} else {
+			// If snapshot is active the transfer may be counted
+			snapshot.newTransferReceived(m.getSenderId(), m.getAmount());
+		}
 
-		// Increase balance
-		availableAmounts += m.getAmount();
+		// Increase the balance of the destination account in its shard
+		int account = Math.floorMod(m.getAccount(), accounts);
+		Shard shard = shards[account % shards.length];
+		int slot = account / shards.length;
+		long amount = m.getAmount();
+
+		shard.process(() -> shard.deposit(slot, amount));
 	}
 
 	private void processToken(Token m) {
-		boolean isNewSnapshot = snapshot.newTokenReceived(m.getSenderId(), m.getSnapshotId(), availableAmounts);
+		if (algorithm == SnapshotAlgorithm.LAI_YANG) {
+			if (m.getSnapshotId() > epoch)
+				recordLaiYangState(m.getSnapshotId(), null);
+			return;
+		}
+
+		boolean isNewSnapshot = snapshot.newTokenReceived(m.getSenderId(), m.getSnapshotId());
 
 		if (!isNewSnapshot)
 			return;
 
-		// Broadcasts tokens to all branches except itself
-		try {
-			broadcastTokens(m.getSnapshotId());
-		} catch (InterruptedException | ExecutionException e) {
-			e.printStackTrace();
-		}
+		recordLocalState(m.getSnapshotId());
 	}
 
-	// Transfer random money to random branch
-	private void sendRandomTransfer() {
-
-		if (availableAmounts == 0)
+	/**
+	 * Record the balance of all shards and then broadcast the tokens. Each
+	 * shard records its state once it has processed the transfers received
+	 * before the snapshot started and stops sending transfers until the tokens
+	 * are queued for broadcast, so that no transfer sent after the recording
+	 * can precede a token on its channel
+	 */
+	private void recordLocalState(long snapshotId) {
+		Long parentId = newRecording(snapshotId);
+		boolean full = (parentId == null);
+
+		if (shards.length == 1) {
+			// The shard is processed by this thread, no transfer occurs
+			// between saving the balance and queuing tokens for broadcast
+			Map<Integer, Long> recordedAccounts = new HashMap<Integer, Long>();
+			shards[0].recordAccounts(full, recordedAccounts);
+			snapshot.stateRecorded(snapshotId, shards[0].getAvailableBalance(), recordedAccounts, parentId);
+			broadcastTokens(snapshotId);
 			return;
+		}
 
-		int maxValue = (int) Math.min(MAX_TRANSFER, availableAmounts);
-		long amount = (maxValue > 0) ? 1 + (rand.nextInt(maxValue)) : 1;
+		AtomicInteger pendingShards = new AtomicInteger(shards.length);
+		AtomicLong recordedBalance = new AtomicLong();
+		Map<Integer, Long> recordedAccounts = new ConcurrentHashMap<Integer, Long>();
 
-		// Move the transferred amount from available to reserved
-		availableAmounts -= amount;
-		reservedAmounts += amount;
+		for (Shard shard : shards) {
+			shard.process(() -> {
+				recordedBalance.addAndGet(shard.record());
+				shard.recordAccounts(full, recordedAccounts);
 
-		// Once the transfer is completed the branch thread:
-		// 1. reduces the reserved amounts
-		// 2. start a new random transfer
-		CompletableFuture<Void> outcome = overlay.sendMessage(getRandomBranch(), new Transfer(amount)).thenAcceptAsync(t -> {
-			reservedAmounts -= t.getAmount();
-		}, MAIN_LOOP);
+				if (pendingShards.decrementAndGet() > 0)
+					return;
 
-		// Delivery successful: schedule next transfer
-		outcome.thenRunAsync(this::sendRandomTransfer, MAIN_LOOP);
+				// All shards recorded and paused
+				MAIN_LOOP.execute(() -> {
+					snapshot.stateRecorded(snapshotId, recordedBalance.get(), recordedAccounts, parentId);
+					broadcastTokens(snapshotId);
 
-		// Delivery failed: restore transfer amounts and schedule next transfer
-		outcome.exceptionally((ex) -> {
-			MAIN_LOOP.execute(() -> {
-				availableAmounts += amount;
-				reservedAmounts -= amount;
-				sendRandomTransfer();
+					for (Shard s : shards)
+						s.process(s::resume);
+				});
 			});
-			return null;
-		});
+		}
+	}
+
+	/**
+	 * Account a new local recording
+	 * 
+	 * @return The snapshot the changed accounts are relative to, null if all
+	 *         the accounts have to be recorded
+	 */
+	private Long newRecording(long snapshotId) {
+		// Shards record in the same order the snapshots are started here, so
+		// the changed accounts are relative to the previous recording. A full
+		// recording is taken if the previous one may never be logged (not yet
+		// reported or the snapshot failed) or has the same ID, restarted
+		boolean full = (recordings++ % FULL_RECORDING_PERIOD == 0) || !lastRecordingReported || lastRecordedId == snapshotId;
+		Long parentId = full ? null : lastRecordedId;
+		lastRecordedId = snapshotId;
+		lastRecordingReported = false;
+		return parentId;
 	}
 
-	// Randomly choose a destination branch
-	private int getRandomBranch() {
-		if (this.nextBranch == randBranches.size()) {
-			Collections.shuffle(randBranches);
-			this.nextBranch = 0;
+	/**
+	 * The recording of the given snapshot was reported to the collector,
+	 * which logs it
+	 */
+	private void recordingReported(long snapshotId) {
+		if (snapshotId == lastRecordedId)
+			lastRecordingReported = true;
+	}
+
+	/**
+	 * Lai-Yang recording: the balance and the money sent to each neighbour by
+	 * all shards, together with the money received so far. Each shard tags
+	 * the transfers sent after its recording with the snapshot ID, so shards
+	 * are not paused. Transfers processed after this point are deposited
+	 * after the shards recorded their balance.
+	 * 
+	 * @param snapFut
+	 *            Completed with the recorded balance, may be null
+	 */
+	private void recordLaiYangState(long snapshotId, CompletableFuture<Long> snapFut) {
+		long startNanos = System.nanoTime();
+		Long parentId = newRecording(snapshotId);
+		epoch = snapshotId;
+		long[] received = receivedAmounts.clone();
+
+		AtomicInteger pendingShards = new AtomicInteger(shards.length);
+		AtomicLong recordedBalance = new AtomicLong();
+		AtomicLongArray sent = new AtomicLongArray(neighbours.size());
+		Map<Integer, Long> recordedAccounts = new ConcurrentHashMap<Integer, Long>();
+
+		for (Shard shard : shards) {
+			shard.process(() -> {
+				recordedBalance.addAndGet(shard.recordEpoch(snapshotId, sent));
+				shard.recordAccounts(parentId == null, recordedAccounts);
+
+				if (pendingShards.decrementAndGet() > 0)
+					return;
+
+				MAIN_LOOP.execute(() -> {
+					Map<Integer, Long> sentTo = new HashMap<Integer, Long>();
+					Map<Integer, Long> receivedFrom = new HashMap<Integer, Long>();
+					for (int i = 0; i < neighbours.size(); i++) {
+						sentTo.put(neighbours.get(i), sent.get(i));
+						receivedFrom.put(neighbours.get(i), received[i]);
+					}
+
+					collector.reportLocalCounters(snapshotId, localId, recordedBalance.get(), sentTo, receivedFrom, recordedAccounts, parentId);
+					recordingReported(snapshotId);
+					metrics.localDone(micros(System.nanoTime() - startNanos));
+
+					if (snapFut != null)
+						snapFut.complete(recordedBalance.get());
+				});
+			});
 		}
-		return randBranches.get(this.nextBranch++);
 	}
 
+	/**
+	 * Start a global snapshot from this branch
+	 * 
+	 * @return A future completed with the local snapshot value once the local
+	 *         snapshot terminated or, with a spanning tree, once the snapshot
+	 *         terminated in the subtree of this branch (all the branches for
+	 *         the root)
+	 */
 	public CompletableFuture<Long> startSnapshot(int snapshotId) {
 		CompletableFuture<Long> snapFut = new CompletableFuture<Long>();
 
 		System.out.println("Starting global snapshot " + snapshotId + " from branch " + localId);
 
 		MAIN_LOOP.execute(() -> {
-			snapshot.startSnapshot(snapshotId, availableAmounts).thenAccept((v) -> snapFut.complete(v));
-
-			// Send tokens to all other branches, no transfer occurs between
-			// saving the availableAmounts and queuing tokens for broadcast
-			try {
-				broadcastTokens(snapshotId);
-			} catch (InterruptedException | ExecutionException e) {
-				e.printStackTrace();
+			if (algorithm == SnapshotAlgorithm.LAI_YANG) {
+				if (snapshotId <= epoch) {
+					snapFut.completeExceptionally(new IllegalStateException("Snapshot " + snapshotId + " not newer than the last recorded " + epoch));
+					return;
+				}
+
+				// Tokens only start the snapshot in the branches not reached
+				// by tagged transfers
+				recordLaiYangState(snapshotId, snapFut);
+				List<Integer> others = new ArrayList<Integer>(branches.keySet());
+				others.remove((Integer) localId);
+				overlay.broadcastMessage(others, new Token(snapshotId));
+				return;
 			}
+
+			// Snapshot already started by a token or another initiator
+			boolean isJoined = snapshot.isActive(snapshotId);
+
+			CompletableFuture<Long> localFut = snapshot.startSnapshot(snapshotId);
+			localFut.whenComplete((v, ex) -> {
+				if (ex != null)
+					snapFut.completeExceptionally(ex);
+				else
+					snapFut.complete(v);
+			});
+
+			// Record the shards and send tokens to all other branches
+			if (!isJoined)
+				recordLocalState(snapshotId);
 		});
 		return snapFut;
 	}
 
-	private void broadcastTokens(long snapshotId) throws InterruptedException, ExecutionException {
-		Set<Integer> destBranches = new HashSet<Integer>(branches.keySet());
-
-		destBranches.remove(localId);
-
-		for (int branch : destBranches) {
-			overlay.sendMessage(branch, new Token(snapshotId));
-		}
+	private void broadcastTokens(long snapshotId) {
+		overlay.broadcastMessage(tokenPeers, new Token(snapshotId));
 	}
 
 	/**
@@ -211,120 +575,575 @@ public class Branch {
 	 *         for transfers
 	 */
 	public long getTotalBalance() {
-		return availableAmounts + reservedAmounts;
+		long total = 0;
+		for (Shard shard : shards)
+			total += shard.getAvailableBalance() + shard.getReservedBalance();
+		return total;
 	}
 
 	/**
 	 * @return The balance available to the branch
 	 */
 	public long getAvailableBalance() {
-		return availableAmounts;
+		long total = 0;
+		for (Shard shard : shards)
+			total += shard.getAvailableBalance();
+		return total;
+	}
+
+	/**
+	 * Report the following local snapshots to the given collector instead of
+	 * the collector of this process
+	 */
+	public void setSnapshotCollector(SnapshotCollector collector) {
+		this.collector = collector;
+	}
+
+	/**
+	 * @return Timings of the snapshot phases in this branch
+	 */
+	public SnapshotMetrics getSnapshotMetrics() {
+		return metrics;
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+	/**
+	 * @return Offered and achieved transfers of all the shards
+	 */
+	public Workload.Stats getWorkloadStats() {
+		Workload.Stats stats = shards[0].getWorkloadStats();
+		for (int i = 1; i < shards.length; i++)
+			stats = stats.add(shards[i].getWorkloadStats());
+		return stats;
 	}
 
 	public void stop() {
 		overlay.stop();
-		MAIN_LOOP.shutdownNow();
+		if (ownedLoop != null)
+			ownedLoop.shutdownNow();
+		if (loopThread != null)
+			loopThread.stop();
+		for (Shard shard : shards)
+			shard.stop();
 	}
 
 	/**
-	 * Helper class to manage the snapshot state for the local branch
+	 * Partition of the branch accounts, its state is only accessed by the
+	 * shard thread. Account a of the branch is in slot a / shards.length of
+	 * the shard. A single shard is processed by the branch thread.
 	 */
-	class SnapshotHelper {
+	class Shard {
+
+		private final int index;
 
-		private final Set<Integer> receivedTokens = new HashSet<Integer>();
+		// Thread of the shard, null if processed by the branch thread
+		private final Executor executor;
 
-		private CompletableFuture<Long> snapFut;
-		private boolean isSnapshotMode = false;
-		private long snapshotId;
-		private long branchBalance;
-		private long incomingTransfers;
+		// Executor owned by the shard, null if shared with other shards and
+		// released with the runtime
+		private final ExecutorService ownedExecutor;
+
+		// Money available (not reserved) in each account of the shard
+		private final long[] balances;
+
+		// Money available (not reserved) that can be used for transfers
+		private long availableAmounts = 0;
+
+		// Money reserved for pending outgoing transfers
+		private long reservedAmounts = 0;
+
+		// Outgoing transfers waiting to be delivered
+		private int pendingTransfers = 0;
+
+		private final Random rand = new Random();
+
+		// Destination branches selection
+		private final DestinationSelector destinations;
+
+		private final WorkloadGenerator generator;
+
+		// Lai-Yang: last snapshot recorded by the shard, tagging its transfers,
+		// and money sent to each neighbour
+		private long epoch = Transfer.NO_EPOCH;
+		private final long[] sentAmounts = new long[neighbours.size()];
+
+		// Account slots changed since the last recording
+		private final BitSet changed = new BitSet();
+
+		// Snapshots recorded by the shard whose tokens are not sent yet
+		private int pauses = 0;
+
+		// Closed loop: transfer to send once resumed, open loop: number of
+		// transfers issued while paused
+		private boolean transferDeferred = false;
+		private int deferredTransfers = 0;
+
+		/**
+		 * @param runtime
+		 *            Runtime whose executors run the shards, if null each of
+		 *            them has its own thread
+		 */
+		Shard(int index, SharedRuntime runtime) {
+			this.index = index;
+			if (shards.length == 1) {
+				executor = ownedExecutor = null;
+			} else if (runtime != null) {
+				// Shards of all branches spread over the runtime executors
+				executor = runtime.getBranchExecutor(localId * shards.length + index);
+				ownedExecutor = null;
+			} else {
+				executor = ownedExecutor = newLoopExecutor("Branch " + localId + " Shard " + index);
+			}
+
+			// Split the initial balance among the accounts, the remainder goes
+			// to the first one
+			int slots = (accounts - index + shards.length - 1) / shards.length;
+			balances = new long[slots];
+			for (int slot = 0; slot < slots; slot++) {
+				int account = slot * shards.length + index;
+				balances[slot] = INITIAL_BALANCE / accounts + ((account == 0) ? INITIAL_BALANCE % accounts : 0);
+				availableAmounts += balances[slot];
+			}
+
+			destinations = workload.destinations.newSelector(localId, neighbours);
+			generator = new WorkloadGenerator(workload.rate / shards.length, workload.burstSize);
+		}
+
+		void start() {
+			if (workload.isOpenLoop())
+				generator.start((n) -> execute(() -> issueTransfers(n)));
+			else
+				execute(this::sendRandomTransfer);
+		}
+
+		/**
+		 * Run the task by the shard thread
+		 */
+		void execute(Runnable task) {
+			if (executor != null)
+				executor.execute(task);
+			else
+				MAIN_LOOP.execute(task);
+		}
+
+		/**
+		 * Run a task submitted by the branch thread, immediately if the shard
+		 * is processed by the branch thread. Tasks are executed in order.
+		 */
+		void process(Runnable task) {
+			if (executor != null)
+				executor.execute(task);
+			else
+				task.run();
+		}
+
+		void deposit(int slot, long amount) {
+			balances[slot] += amount;
+			changed.set(slot);
+			availableAmounts += amount;
+		}
+
+		// Closed loop: transfer random money from a random account to a random
+		// branch, the next transfer is sent once the previous one is completed
+		void sendRandomTransfer() {
+			// Sent once the snapshot tokens are queued
+			if (pauses > 0) {
+				transferDeferred = true;
+				return;
+			}
+
+			generator.transferOffered();
+			CompletableFuture<Void> outcome = sendRandomTransferOnce();
+			if (outcome != null)
+				outcome.thenRun(this::sendRandomTransfer);
+			else
+				generator.transferSkipped();
+		}
+
+		// Open loop: send the transfers due at the target rate
+		private void issueTransfers(int n) {
+			// Sent once the snapshot tokens are queued
+			if (pauses > 0) {
+				deferredTransfers += n;
+				return;
+			}
+
+			// Beyond the cap the offered load exceeds what the network
+			// delivers, the due transfers are skipped instead of queued
+			for (int i = 0; i < n; i++)
+				if (pendingTransfers >= MAX_PENDING_TRANSFERS || sendRandomTransferOnce() == null)
+					generator.transferSkipped();
+		}
+
+		/**
+		 * Send a random transfer, once completed the shard thread reduces the
+		 * reserved amounts and restores them if not delivered
+		 * 
+		 * @return The future completed by the shard thread, null if no money
+		 *         is available
+		 */
+		private CompletableFuture<Void> sendRandomTransferOnce() {
+			int slot = pickAccount();
+			if (slot < 0)
+				return null;
+
+			long amount = reserveRandomAmount(slot);
+
+			return send(amount).handleAsync((t, ex) -> {
+				transferCompleted(slot, amount, ex == null);
+				return null;
+			}, this::execute);
+		}
+
+		/**
+		 * @return A random account slot with available money, -1 if the shard
+		 *         has no money
+		 */
+		int pickAccount() {
+			if (availableAmounts == 0)
+				return -1;
+
+			int start = rand.nextInt(balances.length);
+			for (int i = 0; i < balances.length; i++) {
+				int slot = (start + i) % balances.length;
+				if (balances[slot] > 0)
+					return slot;
+			}
+			return -1;
+		}
+
+		// Move a random amount from available to reserved, the account must
+		// have some available money
+		long reserveRandomAmount(int slot) {
+			long amount = workload.amounts.next(rand, balances[slot]);
+
+			balances[slot] -= amount;
+			changed.set(slot);
+			availableAmounts -= amount;
+			reservedAmounts += amount;
+			return amount;
+		}
+
+		// Release the reserved amount of a transfer, restoring it as available
+		// if not delivered
+		void transferCompleted(int slot, long amount, boolean delivered) {
+			generator.transferCompleted(delivered);
+			pendingTransfers--;
+			reservedAmounts -= amount;
+			if (!delivered) {
+				balances[slot] += amount;
+				changed.set(slot);
+				availableAmounts += amount;
+			}
+		}
+
+		// Send the amount to a random account of a random branch
+		CompletableFuture<Message> send(long amount) {
+			generator.transferSent();
+			pendingTransfers++;
+			int dest = destinations.next(rand);
+
+			if (algorithm == SnapshotAlgorithm.LAI_YANG)
+				sentAmounts[Collections.binarySearch(neighbours, dest)] += amount;
+
+			return overlay.sendMessage(dest, new Transfer(amount, rand.nextInt(accounts), epoch));
+		}
+
+		/**
+		 * Record the shard balance for a snapshot and stop sending transfers
+		 * until resumed
+		 */
+		long record() {
+			pauses++;
+			return availableAmounts;
+		}
+
+		/**
+		 * Lai-Yang recording: the following transfers are tagged with the
+		 * snapshot ID and the money sent so far is added to the given counters
+		 * 
+		 * @return The shard balance
+		 */
+		long recordEpoch(long snapshotId, AtomicLongArray sent) {
+			epoch = snapshotId;
+			for (int i = 0; i < sentAmounts.length; i++)
+				sent.addAndGet(i, sentAmounts[i]);
+			return availableAmounts;
+		}
+
+		/**
+		 * Save the balance of the accounts changed since the previous
+		 * recording, or of all the accounts for a full recording
+		 */
+		void recordAccounts(boolean full, Map<Integer, Long> out) {
+			if (full) {
+				for (int slot = 0; slot < balances.length; slot++)
+					out.put(slot * shards.length + index, balances[slot]);
+			} else {
+				for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed.nextSetBit(slot + 1))
+					out.put(slot * shards.length + index, balances[slot]);
+			}
+			changed.clear();
+		}
+
+		void resume() {
+			// Still paused by the recording of another snapshot
+			if (--pauses > 0)
+				return;
+
+			if (transferDeferred) {
+				transferDeferred = false;
+				sendRandomTransfer();
+			}
+			if (deferredTransfers > 0) {
+				int n = deferredTransfers;
+				deferredTransfers = 0;
+				issueTransfers(n);
+			}
+		}
+
+		Workload.Stats getWorkloadStats() {
+			return generator.getStats();
+		}
+
+		long getAvailableBalance() {
+			return availableAmounts;
+		}
+
+		long getReservedBalance() {
+			return reservedAmounts;
+		}
+
+		void stop() {
+			generator.stop();
+			if (ownedExecutor != null)
+				ownedExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Helper class to manage the snapshot state for the local branch. Many
+	 * snapshots can be in progress at the same time, each one identified by
+	 * its ID and with its own tokens and channel recordings. Tokens of
+	 * different snapshots are independent markers on the same FIFO channels,
+	 * so each snapshot is consistent on its own. Initiators starting a
+	 * snapshot with the same ID join the same snapshot: the first of the local
+	 * start and the first token records the local state.
+	 */
+	class SnapshotHelper {
+
+		private final Map<Long, SnapshotState> snapshots = new HashMap<Long, SnapshotState>();
 
 		/**
 		 * 
 		 * @param branch
 		 * @param snapshotId
-		 * @param currentBalance
 		 * @return Returns true if the token has triggered a new snapshot in the
-		 *         local node
+		 *         local node, the caller has to record the local state
 		 */
-		public boolean newTokenReceived(int branch, long snapshotId, long currentBalance) {
-			// Discard token not matching current snapshot id
-			if (isSnapshotMode && snapshotId != this.snapshotId) {
-				System.out.println("Token not matching active snapshot ID");
-				return false;
-			}
+		public boolean newTokenReceived(int branch, long snapshotId) {
+			SnapshotState s = snapshots.get(snapshotId);
 
-			boolean newSnapshotStarted = false;
+			// The first token of a snapshot starts it locally
+			boolean newSnapshotStarted = (s == null);
+			if (newSnapshotStarted)
+				s = newSnapshot(snapshotId);
 
-			// If snapshot mode is not active, this token triggers a new one
-			if (!isSnapshotMode) {
-				startSnapshot(snapshotId, currentBalance);
-				newSnapshotStarted = true;
-			}
+			long elapsed = micros(System.nanoTime() - s.startNanos);
+			if (s.isInitiator && s.receivedTokens.size() == 1)
+				metrics.firstTokenReceived(elapsed);
 
 			// Try to add a token
-			if (!receivedTokens.add(branch))
+			if (!s.receivedTokens.add(branch)) {
 				System.out.println("Token already received!");
+			} else {
+				int i = Collections.binarySearch(tokenPeers, branch);
+				metrics.channelClosed(branch, elapsed, (i >= 0) ? s.inFlight[i] : 0);
+			}
 
-			// Token received from all branches, local snapshot is terminated
-			if (receivedTokens.size() == branches.size())
-				stopSnapshot();
+			checkCompleted(s);
 
 			return newSnapshotStarted;
 		}
 
 		public void newTransferReceived(int branch, long amount) {
-			if (!isSnapshotMode)
-				return;
+			// The transfer is in the channel state of every snapshot whose
+			// token from the sender was not received yet
+			int i = Collections.binarySearch(tokenPeers, branch);
+			for (SnapshotState s : snapshots.values()) {
+				if (!s.receivedTokens.contains(branch)) {
+					s.incomingTransfers += amount;
+					if (i >= 0)
+						s.inFlight[i]++;
+				}
+			}
+		}
 
-			// If token was not received the transfer has to be counted in
-			// current
-			// snapshot
-			if (!receivedTokens.contains(branch)) {
-				incomingTransfers += amount;
+		/**
+		 * Start a new local snapshot or join the one in progress with the same
+		 * ID, the caller has to record the local state of new snapshots only
+		 */
+		public CompletableFuture<Long> startSnapshot(long snapshotId) {
+			SnapshotState s = snapshots.get(snapshotId);
+			if (s == null) {
+				s = newSnapshot(snapshotId);
+				s.isInitiator = true;
 			}
+			return s.snapFut;
 		}
 
-		public CompletableFuture<Long> startSnapshot(long snapshotId, long currentBalance) {
-			snapFut = new CompletableFuture<Long>();
-			if (snapshot.isActive()) {
-				snapFut.completeExceptionally(new IllegalStateException("Skipped global snapshot " + snapshotId + " from branch " + localId + " (snapshot " + snapshot.getActiveId() + " still in progress)"));
-				return snapFut;
+		private SnapshotState newSnapshot(long snapshotId) {
+			SnapshotState s = new SnapshotState(snapshotId, tokenPeers.size());
+			s.receivedTokens.add(localId);
+			snapshots.put(snapshotId, s);
+			return s;
+		}
+
+		/**
+		 * Save the recorded local state of the given snapshot
+		 * 
+		 * @param accounts
+		 *            Balance of the recorded accounts
+		 * @param parentId
+		 *            Previous recording the accounts are changed from, null if
+		 *            all the accounts are recorded
+		 */
+		public void stateRecorded(long snapshotId, long balance, Map<Integer, Long> accounts, Long parentId) {
+			SnapshotState s = snapshots.get(snapshotId);
+			s.branchBalance = balance;
+			s.accounts = accounts;
+			s.parentId = parentId;
+			s.isStateRecorded = true;
+
+			checkCompleted(s);
+		}
+
+		// Local state recorded and token received from all token peers (only
+		// one branch: immediately), local snapshot is terminated
+		private void checkCompleted(SnapshotState s) {
+			if (!s.isLocalDone && s.isStateRecorded && s.receivedTokens.size() == tokenPeers.size() + 1)
+				stopSnapshot(s);
+		}
+
+		private void stopSnapshot(SnapshotState s) {
+			s.isLocalDone = true;
+			s.localDoneNanos = System.nanoTime();
+			metrics.localDone(micros(s.localDoneNanos - s.startNanos));
+
+			if (!topology.hasTree()) {
+				collector.reportLocalSnapshot(s.snapshotId, localId, s.branchBalance, s.incomingTransfers, s.accounts, s.parentId);
+				recordingReported(s.snapshotId);
+				snapshots.remove(s.snapshotId);
+				s.snapFut.complete(s.branchBalance + s.incomingTransfers);
+				return;
 			}
 
-			isSnapshotMode = true;
-			this.snapshotId = snapshotId;
-			incomingTransfers = 0;
+			// Only logged locally, the total is reported by the tree root
+			GlobalSnapshotCollector.logLocal(s.snapshotId, localId, s.branchBalance, s.incomingTransfers, s.accounts, s.parentId);
+			recordingReported(s.snapshotId);
+			s.subtreeTotal += s.branchBalance + s.incomingTransfers;
+			s.subtreeBranches++;
 
-			// Save local snapshot status
-			branchBalance = currentBalance;
-			receivedTokens.add(localId);
+			checkSubtreeDone(s);
+		}
 
-			// Only one branch, local snapshot terminates immediately
-			if (branches.size() == 1)
-				stopSnapshot();
+		/**
+		 * The snapshot terminated in the subtree of the given child
+		 * 
+		 * @param total
+		 *            Sum of the local snapshots of the child subtree
+		 * @param branches
+		 *            Number of branches in the child subtree
+		 */
+		public void subtreeDone(int child, long snapshotId, long total, int branches) {
+			SnapshotState s = snapshots.get(snapshotId);
+			if (s == null) {
+				System.out.println("Completion of unknown snapshot " + snapshotId + " from branch " + child);
+				return;
+			}
 
-			return snapFut;
+			s.doneChildren++;
+			s.subtreeTotal += total;
+			s.subtreeBranches += branches;
+			checkSubtreeDone(s);
 		}
 
-		private void stopSnapshot() {
-			isSnapshotMode = false;
-			GlobalSnapshotCollector.reportLocalSnapshot(snapshotId, localId, branchBalance, incomingTransfers);
+		// Once the local snapshot and all the child subtrees terminated the
+		// parent is notified with the subtree sum, the root reports the global
+		// sum and completes the snapshot future only when all the branches
+		// terminated
+		private void checkSubtreeDone(SnapshotState s) {
+			if (!s.isLocalDone || s.doneChildren < treeChildren.size())
+				return;
 
-			snapFut.complete(branchBalance + incomingTransfers);
-			receivedTokens.clear();
+			snapshots.remove(s.snapshotId);
+			metrics.subtreeDone(micros(System.nanoTime() - s.localDoneNanos));
+
+			if (treeParent != null)
+				overlay.sendMessage(treeParent, new SnapshotDone(s.snapshotId, s.subtreeTotal, s.subtreeBranches));
+			else
+				collector.reportSubtree(s.snapshotId, localId, s.subtreeTotal, s.subtreeBranches);
+
+			s.snapFut.complete(s.branchBalance + s.incomingTransfers);
 		}
 
-		public boolean isTokenArrived(int branch) {
-			return receivedTokens.contains(branch);
+		public boolean isActive(long snapshotId) {
+			return snapshots.containsKey(snapshotId);
 		}
 
-		public boolean isActive() {
-			return isSnapshotMode;
+		/**
+		 * @return The number of snapshots in progress
+		 */
+		public int getActiveCount() {
+			return snapshots.size();
 		}
+	}
+
+	/**
+	 * Local state of a snapshot in progress
+	 */
+	private static class SnapshotState {
+
+		final long snapshotId;
+		final CompletableFuture<Long> snapFut = new CompletableFuture<Long>();
+		final Set<Integer> receivedTokens = new HashSet<Integer>();
 
-		public long getActiveId() {
-			return snapshotId;
+		long branchBalance;
+		long incomingTransfers;
+
+		// Transfers recorded in transit from each token peer, in the order of
+		// the token peers list
+		final int[] inFlight;
+
+		// Local start, by the initiation or by the first token, and local
+		// completion
+		final long startNanos = System.nanoTime();
+		long localDoneNanos;
+		boolean isInitiator;
+
+		// Recorded accounts, all of them or the ones changed since the parent
+		// recording
+		Map<Integer, Long> accounts;
+		Long parentId;
+
+		// Set once the balance of all shards is recorded
+		boolean isStateRecorded;
+
+		// Spanning tree completion: local snapshot terminated and number of
+		// children whose subtree terminated
+		boolean isLocalDone;
+		int doneChildren;
+
+		// Sum of the local snapshots of the terminated subtree part
+		long subtreeTotal;
+		int subtreeBranches;
+
+		SnapshotState(long snapshotId, int tokenPeers) {
+			this.snapshotId = snapshotId;
+			this.inFlight = new int[tokenPeers];
 		}
 	}
 }
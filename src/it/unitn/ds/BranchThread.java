@@ -0,0 +1,95 @@
+package it.unitn.ds;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Dedicated thread running the activities of a branch as a blocking loop. At
+ * each iteration the submitted tasks are run followed by the loop step, the
+ * thread parks when the step reports no progress until it is woken up.
+ * A virtual thread is used when the JVM supports them, otherwise a platform
+ * daemon thread.
+ */
+class BranchThread implements Executor {
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final BooleanSupplier step;
+	private final Thread thread;
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param name
+	 *            Thread name
+	 * @param step
+	 *            Loop step, returns false if there was nothing to do
+	 */
+	BranchThread(String name, BooleanSupplier step) {
+		this.step = step;
+		this.thread = newThread(name, this::run);
+	}
+
+	/**
+	 * @return A virtual thread if available, otherwise a daemon thread
+	 */
+	static Thread newThread(String name, Runnable r) {
+		try {
+			// Thread.ofVirtual().name(name).unstarted(r), looked up at runtime
+			// to keep compatibility with older JVMs
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Method setName = builderType.getMethod("name", String.class);
+			Method unstarted = builderType.getMethod("unstarted", Runnable.class);
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (Thread) unstarted.invoke(setName.invoke(builder, name), r);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public void stop() {
+		stopped = true;
+		wake();
+	}
+
+	/**
+	 * Run the given task in the loop thread
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		wake();
+	}
+
+	/**
+	 * Make the loop run a new iteration
+	 */
+	public void wake() {
+		LockSupport.unpark(thread);
+	}
+
+	private void run() {
+		while (!stopped) {
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				task.run();
+
+			// Wake ups received while running are kept by the thread permit
+			if (!step.getAsBoolean() && tasks.isEmpty())
+				LockSupport.park(this);
+			else
+				// Let the other branches progress, virtual threads are not
+				// preempted
+				Thread.yield();
+		}
+	}
+}
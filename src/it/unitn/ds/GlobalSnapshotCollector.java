@@ -4,49 +4,235 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Abstraction of a networked snapshot collector service
- * (Working only for branches running in the same JVM process)
+ * Collects the local snapshots reported in this process, either directly by
+ * the branches running in the same JVM or by a {@link SnapshotCollectorService}
+ * receiving them over the network. Many snapshots are collected at the same
+ * time, each one with its own state: reports for different snapshots never
+ * contend on a lock. A snapshot not reported by all the branches within the
+ * timeout fails.
  */
-public class GlobalSnapshotCollector {
+public class GlobalSnapshotCollector implements SnapshotCollector {
 
-	private static int missingReports;
-	private static long collectedBalance;
+	// Default time in milliseconds a snapshot waits for the missing reports
+	public static final long DEFAULT_TIMEOUT = 30000;
 
-	private static CompletableFuture<Long> snapshotFut;
+	// Expires the snapshots of all the collectors of the process
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 
-	private static final String LOG_DIR = "logs";
-	private static final Map<Integer, PrintWriter> logFiles = new HashMap<Integer, PrintWriter>();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Snapshot Collector Timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Collector of the branches running in this process
+	private static final GlobalSnapshotCollector LOCAL = new GlobalSnapshotCollector();
+
+	static final String LOG_DIR = "logs";
+
+	// Log of each branch, shared by the collectors since a branch is only
+	// reported to one of them
+	private static final Map<Integer, PrintWriter> logFiles = new ConcurrentHashMap<Integer, PrintWriter>();
+
+	private final long timeout;
+
+	// Microseconds from the initialization to the completion of a snapshot
+	private final SnapshotMetrics.Histogram latency = new SnapshotMetrics.Histogram();
+
+	// Snapshots being collected, completed ones are kept for the timeout
+	private final Map<Long, PendingSnapshot> snapshots = new ConcurrentHashMap<Long, PendingSnapshot>();
+
+	public GlobalSnapshotCollector() {
+		this(DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param timeout
+	 *            Time in milliseconds a snapshot waits for the missing reports
+	 */
+	public GlobalSnapshotCollector(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return The collector used by default by the branches of this process
+	 */
+	public static GlobalSnapshotCollector getLocal() {
+		return LOCAL;
+	}
+
+	/**
+	 * Start collecting the given snapshot, many snapshots can be collected at
+	 * the same time. Reports received for a snapshot not being collected, or
+	 * still missing counters when it expires, are only logged.
+	 * 
+	 * @return A future completed with the global balance once all the nodes
+	 *         reported, or with a TimeoutException
+	 */
+	public CompletableFuture<Long> initSnapshot(long snapshotId, int totalNodes) {
+		PendingSnapshot c = new PendingSnapshot(totalNodes);
+		c.expiration = TIMER.schedule(() -> expire(snapshotId, c), timeout, TimeUnit.MILLISECONDS);
 
-	public static void initSnapshot(int totalNodes) {
-		missingReports = totalNodes;
-		collectedBalance = 0;
-		snapshotFut = new CompletableFuture<Long>();
+		PendingSnapshot prev = snapshots.putIfAbsent(snapshotId, c);
+		if (prev != null) {
+			c.expiration.cancel(false);
+			return prev.snapshotFut;
+		}
+		return c.snapshotFut;
 	}
 
 	/**
-	 * Report the local branch snapshot to a snapshot collector service
+	 * @return Time in microseconds from the initialization to the global
+	 *         completion of the snapshots collected so far
 	 */
-	public static synchronized void reportLocalSnapshot(long snapshotId, int branchId, long balance, long incoming) {
-		logLocal(snapshotId, branchId, balance, incoming);
+	public SnapshotMetrics.Histogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return The global balance of a snapshot being collected or completed
+	 *         within the timeout
+	 */
+	public CompletableFuture<Long> getGlobalBalance(long snapshotId) {
+		PendingSnapshot c = snapshots.get(snapshotId);
+		if (c == null) {
+			CompletableFuture<Long> f = new CompletableFuture<Long>();
+			f.completeExceptionally(new IllegalArgumentException("Snapshot " + snapshotId + " not collected"));
+			return f;
+		}
+		return c.snapshotFut;
+	}
+
+	@Override
+	public void reportLocalSnapshot(long snapshotId, int branchId, long balance, long incoming, Map<Integer, Long> accounts, Long parentId) {
+		logLocal(snapshotId, branchId, balance, incoming, accounts, parentId);
 		System.out.println(String.format("Reported snapshot %d:%d\ttotal %d\tbalance %d\tincoming %d", snapshotId, branchId, balance + incoming, balance, incoming));
 
-		missingReports--;
-		collectedBalance += balance + incoming;
+		collect(snapshotId, branchId, balance + incoming, 1);
+	}
+
+	@Override
+	public void reportSubtree(long snapshotId, int rootId, long total, int branches) {
+		System.out.println(String.format("Reported snapshot %d:%d\ttotal %d\tbranches %d", snapshotId, rootId, total, branches));
+
+		collect(snapshotId, rootId, total, branches);
+	}
+
+	private void collect(long snapshotId, int reporterId, long total, int branches) {
+		PendingSnapshot c = snapshots.get(snapshotId);
+		if (c == null)
+			return;
+
+		synchronized (c) {
+			// Reports may be duplicated by the network or late
+			if (c.isDone || !c.reported.add(reporterId))
+				return;
+
+			c.collectedBalance += total;
+			c.reportedNodes += branches;
+			if (c.reportedNodes < c.totalNodes)
+				return;
+			c.isDone = true;
+		}
+
+		complete(snapshotId, c);
+		latency.record((System.nanoTime() - c.startNanos) / 1000);
+		c.snapshotFut.complete(c.collectedBalance);
+	}
+
+	@Override
+	public void reportLocalCounters(long snapshotId, int branchId, long balance, Map<Integer, Long> sent, Map<Integer, Long> received, Map<Integer, Long> accounts, Long parentId) {
+		PendingSnapshot c = snapshots.get(snapshotId);
+		if (c == null) {
+			// Not collected, the money in transit is unknown
+			logLocal(snapshotId, branchId, balance, null, accounts, parentId);
+			return;
+		}
+
+		Map<Integer, Long> incoming = new HashMap<Integer, Long>();
+		synchronized (c) {
+			// Duplicated by the network
+			if (c.reports.containsKey(branchId))
+				return;
+
+			// Once all the counters are in the reports are no longer modified,
+			// late reports are only logged
+			if (c.isDone || c.reports.size() == c.totalNodes) {
+				logLocal(snapshotId, branchId, balance, null, accounts, parentId);
+				return;
+			}
+
+			c.reports.put(branchId, new CounterReport(balance, sent, received, accounts, parentId));
+			if (c.reports.size() < c.totalNodes)
+				return;
+
+			// Money in transit towards each branch
+			c.reports.forEach((id, r) -> {
+				r.sent.forEach((dest, amount) -> incoming.merge(dest, amount, Long::sum));
+				r.received.forEach((src, amount) -> incoming.merge(id, -amount, Long::sum));
+			});
+		}
+
+		c.reports.forEach((id, r) -> reportLocalSnapshot(snapshotId, id, r.balance, incoming.getOrDefault(id, 0L), r.accounts, r.parentId));
+	}
+
+	private void expire(long snapshotId, PendingSnapshot c) {
+		int missing;
+		synchronized (c) {
+			if (c.isDone) {
+				// Retention of the completed snapshot ended
+				snapshots.remove(snapshotId, c);
+				return;
+			}
+			c.isDone = true;
+			missing = c.totalNodes - Math.max(c.reportedNodes, c.reports.size());
+		}
+
+		// Counters of an incomplete snapshot, the money in transit is unknown
+		c.reports.forEach((id, r) -> logLocal(snapshotId, id, r.balance, null, r.accounts, r.parentId));
+
+		snapshots.remove(snapshotId, c);
+		c.snapshotFut.completeExceptionally(new TimeoutException("Snapshot " + snapshotId + " missing " + missing + " reports"));
+	}
 
-		if (missingReports == 0)
-			snapshotFut.complete(collectedBalance);
+	// Keep the completed snapshot available for the timeout
+	private void complete(long snapshotId, PendingSnapshot c) {
+		c.expiration.cancel(false);
+		c.expiration = TIMER.schedule(() -> expire(snapshotId, c), timeout, TimeUnit.MILLISECONDS);
 	}
 
-	private static void logLocal(long snapshotId, int branchId, long balance, long incoming) {
+	/**
+	 * Append the local snapshot to the branch log, the log is restarted by
+	 * every run since the recorded accounts refer to the previous recordings.
+	 * Line format: snapshotId balance incoming followed by "full" or by "delta"
+	 * and the parent snapshotId, then account=balance for each recorded account
+	 * 
+	 * @param incoming
+	 *            Money in transit towards the branch, null if unknown since
+	 *            the snapshot was not collected (logged as "?")
+	 * @see SnapshotLogReader
+	 */
+	static void logLocal(long snapshotId, int branchId, long balance, Long incoming, Map<Integer, Long> accounts, Long parentId) {
 		PrintWriter o = logFiles.computeIfAbsent(branchId, (id) -> {
 			File f = new File(LOG_DIR + File.separator + id + ".log");
 			try {
 				f.getParentFile().mkdirs();
-				return new PrintWriter(new FileOutputStream(f, true));
+				return new PrintWriter(new FileOutputStream(f, false));
 			} catch (Exception e) {
 				e.printStackTrace();
 				return null;
@@ -54,12 +240,63 @@ public class GlobalSnapshotCollector {
 		});
 
 		if (o != null) {
-			o.println(String.format("%d %d %d", snapshotId, balance, incoming));
-			o.flush();
+			StringBuilder line = new StringBuilder();
+			line.append(snapshotId).append(' ').append(balance).append(' ').append((incoming != null) ? incoming.toString() : "?");
+
+			if (parentId == null)
+				line.append(" full");
+			else
+				line.append(" delta ").append(parentId);
+
+			for (Map.Entry<Integer, Long> a : accounts.entrySet())
+				line.append(' ').append(a.getKey()).append('=').append(a.getValue());
+
+			synchronized (o) {
+				o.println(line);
+				o.flush();
+			}
+		}
+	}
+
+	/**
+	 * Aggregation state of a snapshot, guarded by its own lock
+	 */
+	private static class PendingSnapshot {
+
+		final CompletableFuture<Long> snapshotFut = new CompletableFuture<Long>();
+		final long startNanos = System.nanoTime();
+		final int totalNodes;
+		// Reporting branches or tree roots and branches summed by them
+		final Set<Integer> reported = new HashSet<Integer>();
+		int reportedNodes;
+		long collectedBalance;
+		boolean isDone;
+
+		// Fails the snapshot or, once completed, ends its retention
+		volatile ScheduledFuture<?> expiration;
+
+		// Lai-Yang reports waiting for all the branches
+		final Map<Integer, CounterReport> reports = new HashMap<Integer, CounterReport>();
+
+		PendingSnapshot(int totalNodes) {
+			this.totalNodes = totalNodes;
 		}
 	}
 
-	public static CompletableFuture<Long> getGlobalBalance() {
-		return snapshotFut;
+	private static class CounterReport {
+
+		final long balance;
+		final Map<Integer, Long> sent;
+		final Map<Integer, Long> received;
+		final Map<Integer, Long> accounts;
+		final Long parentId;
+
+		CounterReport(long balance, Map<Integer, Long> sent, Map<Integer, Long> received, Map<Integer, Long> accounts, Long parentId) {
+			this.balance = balance;
+			this.sent = sent;
+			this.received = received;
+			this.accounts = accounts;
+			this.parentId = parentId;
+		}
 	}
 }
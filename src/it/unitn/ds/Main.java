@@ -1,5 +1,6 @@
 package it.unitn.ds;
 
+import it.unitn.ds.net.NetOverlay;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
@@ -17,7 +18,7 @@ public class Main {
 	public static void main(String[] args) throws Exception {
 
 		if (args.length < 2) {
-			System.out.println("Usage: snapshot.jar <localId> <branchesFile>");
+			System.out.println("Usage: snapshot.jar <localId> <branchesFile> [udp|tcp]");
 			System.exit(1);
 		}
 
@@ -31,7 +32,9 @@ public class Main {
 			System.exit(1);
 		}
 
-		Branch branch = Branch.start(branchId, branches).get();
+		String transport = (args.length > 2) ? args[2] : "udp";
+
+		Branch branch = Branch.start(branchId, branches, new Branch.Config().overlay(NetOverlay.newInstance(transport))).get();
 		System.out.println("Started branch " + branchId + " at " + branches.get(branchId) + " with an initial balance of " + Branch.INITIAL_BALANCE);
 
 		Scanner s = new Scanner(System.in);
@@ -0,0 +1,71 @@
+package it.unitn.ds;
+
+import it.unitn.ds.net.NetOverlay;
+import it.unitn.ds.net.NetOverlay.SnapshotReport;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the local snapshots of the branches to a
+ * {@link SnapshotCollectorService} over its own overlay, many branches can
+ * share the same client. Reports carry the recorded accounts, over UDP those
+ * not fitting a datagram fail and are logged
+ */
+public class RemoteSnapshotCollector implements SnapshotCollector {
+
+	private final NetOverlay overlay;
+	private final int serviceId;
+
+	/**
+	 * @param overlay
+	 *            Overlay used only to reach the service
+	 * @param serviceId
+	 *            Overlay ID of the service
+	 */
+	public RemoteSnapshotCollector(NetOverlay overlay, int serviceId) {
+		this.overlay = overlay;
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * @param localId
+	 *            Overlay ID of the client
+	 * @param nodes
+	 *            Addresses of the client and of the service
+	 * @return A future completed once the client is started
+	 */
+	public CompletableFuture<Void> start(int localId, Map<Integer, InetSocketAddress> nodes) {
+		// Nothing is received, messages are discarded
+		overlay.setMessageListener(() -> overlay.drainMessages(Integer.MAX_VALUE, (m) -> m.release()), Runnable::run);
+		return overlay.start(localId, nodes);
+	}
+
+	public void stop() {
+		overlay.stop();
+	}
+
+	@Override
+	public void reportLocalSnapshot(long snapshotId, int branchId, long balance, long incoming, Map<Integer, Long> accounts, Long parentId) {
+		send(new SnapshotReport(snapshotId, branchId, balance, incoming, parentId, accounts, Collections.emptyMap(), Collections.emptyMap()));
+	}
+
+	@Override
+	public void reportLocalCounters(long snapshotId, int branchId, long balance, Map<Integer, Long> sent, Map<Integer, Long> received, Map<Integer, Long> accounts, Long parentId) {
+		send(new SnapshotReport(snapshotId, branchId, balance, 0, parentId, accounts, sent, received));
+	}
+
+	@Override
+	public void reportSubtree(long snapshotId, int rootId, long total, int branches) {
+		send(new SnapshotReport(snapshotId, rootId, total, branches));
+	}
+
+	private void send(SnapshotReport r) {
+		// The snapshot fails at the service once its timeout expires
+		overlay.sendMessage(serviceId, r).whenComplete((m, ex) -> {
+			if (ex != null)
+				System.err.println("Failed to report snapshot " + r.getSnapshotId() + ":" + r.getBranchId() + ": " + ex);
+		});
+	}
+}
@@ -0,0 +1,24 @@
+package it.unitn.ds;
+
+/**
+ * Global snapshot algorithm run by the branches
+ */
+public enum SnapshotAlgorithm {
+
+	/**
+	 * Tokens are sent on the channels after recording the local state and the
+	 * transfers received before the token of their channel are in transit.
+	 * Requires FIFO channels.
+	 */
+	CHANDY_LAMPORT,
+
+	/**
+	 * Transfers carry the last snapshot recorded by the sender and a transfer
+	 * tagged with a newer snapshot makes the receiver record before processing
+	 * it. The money in transit is computed by the collector from the amounts
+	 * sent and received on each channel when recording, so channels need not
+	 * be FIFO and tokens are only sent by the initiator. Snapshots must be run
+	 * one at a time with increasing IDs.
+	 */
+	LAI_YANG
+}
@@ -0,0 +1,50 @@
+package it.unitn.ds;
+
+import java.util.Map;
+
+/**
+ * Receives the local snapshots recorded by the branches and computes the
+ * global balance of each snapshot
+ * 
+ * @see GlobalSnapshotCollector
+ * @see RemoteSnapshotCollector
+ */
+public interface SnapshotCollector {
+
+	/**
+	 * Report the local branch snapshot
+	 * 
+	 * @param accounts
+	 *            Recorded account balances, all of them or only the changed ones
+	 * @param parentId
+	 *            Snapshot the changed accounts are relative to, null if all the
+	 *            accounts are recorded
+	 */
+	void reportLocalSnapshot(long snapshotId, int branchId, long balance, long incoming, Map<Integer, Long> accounts, Long parentId);
+
+	/**
+	 * Report the local branch state recorded by the Lai-Yang algorithm. The
+	 * money in transit on each channel is the money sent by the source minus
+	 * the money received by the destination when they recorded, so it is only
+	 * known once all the branches reported.
+	 * 
+	 * @param sent
+	 *            Money sent to each branch
+	 * @param received
+	 *            Money received from each branch
+	 */
+	void reportLocalCounters(long snapshotId, int branchId, long balance, Map<Integer, Long> sent, Map<Integer, Long> received, Map<Integer, Long> accounts, Long parentId);
+
+	/**
+	 * Report the sum of the local snapshots of a spanning tree, aggregated by
+	 * the branches of the tree. The local snapshots are logged by each branch.
+	 * 
+	 * @param rootId
+	 *            Root of the tree
+	 * @param total
+	 *            Balance and incoming money of all the tree branches
+	 * @param branches
+	 *            Number of branches in the tree
+	 */
+	void reportSubtree(long snapshotId, int rootId, long total, int branches);
+}
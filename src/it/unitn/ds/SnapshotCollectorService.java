@@ -0,0 +1,95 @@
+package it.unitn.ds;
+
+import it.unitn.ds.net.NetOverlay;
+import it.unitn.ds.net.NetOverlay.Message;
+import it.unitn.ds.net.NetOverlay.SnapshotReport;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Snapshot collector reachable over the overlay: the local snapshots sent by
+ * {@link RemoteSnapshotCollector} clients are passed to a collector of this
+ * process, that computes the global balances.
+ * Reports carry the recorded accounts, so large branches need a stream overlay
+ * since a datagram is limited to a single frame.
+ */
+public class SnapshotCollectorService {
+
+	/**
+	 * Maximum number of reports processed in a row
+	 */
+	public static final int MAX_DRAIN_BATCH = 64;
+
+	private final NetOverlay overlay;
+	private final GlobalSnapshotCollector collector;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Snapshot Collector Service");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public SnapshotCollectorService(NetOverlay overlay) {
+		this(overlay, new GlobalSnapshotCollector());
+	}
+
+	public SnapshotCollectorService(NetOverlay overlay, GlobalSnapshotCollector collector) {
+		this.overlay = overlay;
+		this.collector = collector;
+	}
+
+	/**
+	 * Start receiving the reports
+	 * 
+	 * @param serviceId
+	 *            Overlay ID of the service, the reporting clients must use it
+	 *            as destination
+	 * @param nodes
+	 *            Addresses of the service and of its clients
+	 * @return A future completed once the service is started
+	 */
+	public CompletableFuture<Void> start(int serviceId, Map<Integer, InetSocketAddress> nodes) {
+		overlay.setMessageListener(this::processMessages, executor);
+		return overlay.start(serviceId, nodes);
+	}
+
+	public void stop() {
+		overlay.stop();
+		executor.shutdown();
+	}
+
+	/**
+	 * @return The collector fed by the service, where snapshots are
+	 *         initialized and their global balance is retrieved
+	 */
+	public GlobalSnapshotCollector getCollector() {
+		return collector;
+	}
+
+	private void processMessages() {
+		// Give other listeners a chance when many reports are queued
+		if (overlay.drainMessages(MAX_DRAIN_BATCH, this::processMessage) == MAX_DRAIN_BATCH)
+			executor.execute(this::processMessages);
+	}
+
+	private void processMessage(Message m) {
+		if (m.getClass() == SnapshotReport.class) {
+			SnapshotReport r = (SnapshotReport) m;
+			if (r.getAggregated() > 0)
+				collector.reportSubtree(r.getSnapshotId(), r.getBranchId(), r.getBalance(), r.getAggregated());
+			else if (r.hasCounters())
+				collector.reportLocalCounters(r.getSnapshotId(), r.getBranchId(), r.getBalance(), r.getSent(), r.getReceived(), r.getAccounts(), r.getParentId());
+			else
+				collector.reportLocalSnapshot(r.getSnapshotId(), r.getBranchId(), r.getBalance(), r.getIncoming(), r.getAccounts(), r.getParentId());
+		}
+		m.release();
+	}
+}
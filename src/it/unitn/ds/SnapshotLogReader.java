@@ -0,0 +1,145 @@
+package it.unitn.ds;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads the local snapshots of a branch logged by the collector. A snapshot
+ * may only hold the accounts changed since its parent: the account balances
+ * are materialized from the closest full recording followed by the chain of
+ * changes up to the requested snapshot.
+ */
+public class SnapshotLogReader {
+
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+	/**
+	 * Read the log of the given branch from the collector log directory
+	 */
+	public SnapshotLogReader(int branchId) throws IOException {
+		this(new File(GlobalSnapshotCollector.LOG_DIR + File.separator + branchId + ".log"));
+	}
+
+	public SnapshotLogReader(File log) throws IOException {
+		try (BufferedReader in = new BufferedReader(new FileReader(log))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty())
+					parse(line);
+			}
+		}
+	}
+
+	private void parse(String line) throws IOException {
+		String[] v = line.split(" ");
+		try {
+			Entry e = new Entry(Long.parseLong(v[1]), v[2].equals("?") ? null : Long.valueOf(v[2]));
+
+			int next;
+			if (v[3].equals("full")) {
+				next = 4;
+			} else if (v[3].equals("delta")) {
+				e.parentId = Long.parseLong(v[4]);
+				next = 5;
+			} else {
+				throw new IOException("Invalid snapshot log line: " + line);
+			}
+
+			for (int i = next; i < v.length; i++) {
+				int sep = v[i].indexOf('=');
+				e.accounts.put(Integer.parseInt(v[i].substring(0, sep)), Long.parseLong(v[i].substring(sep + 1)));
+			}
+
+			entries.put(Long.parseLong(v[0]), e);
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid snapshot log line: " + line, e);
+		}
+	}
+
+	/**
+	 * @return The IDs of the logged snapshots
+	 */
+	public Set<Long> getSnapshotIds() {
+		return entries.keySet();
+	}
+
+	/**
+	 * @return The balance of every account of the branch in the given snapshot
+	 * @throws IllegalArgumentException
+	 *             If the snapshot or one of the recordings it depends on is
+	 *             not logged
+	 */
+	public Map<Integer, Long> getAccounts(long snapshotId) {
+		// Walk back to the closest full recording
+		Deque<Entry> chain = new ArrayDeque<Entry>();
+		Long id = snapshotId;
+		while (id != null) {
+			Entry e = entries.get(id);
+			if (e == null)
+				throw new IllegalArgumentException("Snapshot " + id + " not logged");
+			if (chain.size() > entries.size())
+				throw new IllegalArgumentException("Cyclic snapshot chain from " + snapshotId);
+
+			chain.push(e);
+			id = e.parentId;
+		}
+
+		// Apply the changes from the oldest one
+		Map<Integer, Long> accounts = new TreeMap<Integer, Long>();
+		for (Entry e : chain)
+			accounts.putAll(e.accounts);
+		return accounts;
+	}
+
+	/**
+	 * @return The branch balance recorded for the snapshot
+	 */
+	public long getBalance(long snapshotId) {
+		return get(snapshotId).balance;
+	}
+
+	/**
+	 * @return The money in transit towards the branch recorded for the
+	 *         snapshot
+	 * @throws IllegalArgumentException
+	 *             If the snapshot was not collected and the money in transit
+	 *             is unknown
+	 */
+	public long getIncoming(long snapshotId) {
+		Long incoming = get(snapshotId).incoming;
+		if (incoming == null)
+			throw new IllegalArgumentException("Snapshot " + snapshotId + " not collected, money in transit unknown");
+		return incoming;
+	}
+
+	private Entry get(long snapshotId) {
+		Entry e = entries.get(snapshotId);
+		if (e == null)
+			throw new IllegalArgumentException("Snapshot " + snapshotId + " not logged");
+		return e;
+	}
+
+	private static class Entry {
+
+		final long balance;
+		// Null if the snapshot was not collected
+		final Long incoming;
+		final Map<Integer, Long> accounts = new HashMap<Integer, Long>();
+
+		// Snapshot the accounts are changed from, null for a full recording
+		Long parentId;
+
+		Entry(long balance, Long incoming) {
+			this.balance = balance;
+			this.incoming = incoming;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package it.unitn.ds;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timings of the snapshot phases recorded by a branch, in microseconds from
+ * the local start of the snapshot (the initiation or the first token):
+ * first token received by the initiator, closing of each incoming channel,
+ * local completion and, with a spanning tree, completion of the subtree after
+ * the local one. The transfers recorded in transit on each channel are also
+ * counted. Values are updated by the branch and can be read at any time.
+ */
+public class SnapshotMetrics {
+
+	private final Histogram firstToken = new Histogram();
+	private final Histogram localLatency = new Histogram();
+	private final Histogram subtreeLatency = new Histogram();
+
+	// By source branch
+	private final Map<Integer, Histogram> channelClose = new ConcurrentHashMap<Integer, Histogram>();
+	private final Map<Integer, Histogram> channelInFlight = new ConcurrentHashMap<Integer, Histogram>();
+
+	void firstTokenReceived(long micros) {
+		firstToken.record(micros);
+	}
+
+	void channelClosed(int source, long micros, long inFlight) {
+		channelClose.computeIfAbsent(source, (s) -> new Histogram()).record(micros);
+		channelInFlight.computeIfAbsent(source, (s) -> new Histogram()).record(inFlight);
+	}
+
+	void localDone(long micros) {
+		localLatency.record(micros);
+	}
+
+	void subtreeDone(long micros) {
+		subtreeLatency.record(micros);
+	}
+
+	/**
+	 * @return Time from the initiation to the first token received, only for
+	 *         the snapshots initiated by the branch
+	 */
+	public Histogram getFirstToken() {
+		return firstToken;
+	}
+
+	/**
+	 * @return Time from the local start to the local completion
+	 */
+	public Histogram getLocalLatency() {
+		return localLatency;
+	}
+
+	/**
+	 * @return Time from the local completion to the completion of the subtree
+	 *         in the spanning tree
+	 */
+	public Histogram getSubtreeLatency() {
+		return subtreeLatency;
+	}
+
+	/**
+	 * @return Time from the local start to the token closing the channel, by
+	 *         source branch
+	 */
+	public Map<Integer, Histogram> getChannelClose() {
+		return channelClose;
+	}
+
+	/**
+	 * @return Transfers recorded in transit on the channel, by source branch
+	 */
+	public Map<Integer, Histogram> getChannelInFlight() {
+		return channelInFlight;
+	}
+
+	/**
+	 * Histogram with power of two buckets: bucket 0 counts the value 0 and
+	 * bucket i the values in [2^(i-1), 2^i)
+	 */
+	public static class Histogram {
+
+		public static final int BUCKETS = 64;
+
+		private final long[] buckets = new long[BUCKETS];
+		private long count;
+		private long sum;
+		private long max;
+
+		synchronized void record(long value) {
+			value = Math.max(value, 0);
+			buckets[64 - Long.numberOfLeadingZeros(value)]++;
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * @return A new histogram with the values of both
+		 */
+		public Histogram add(Histogram h) {
+			Histogram r = new Histogram();
+			synchronized (this) {
+				r.merge(this);
+			}
+			synchronized (h) {
+				r.merge(h);
+			}
+			return r;
+		}
+
+		private void merge(Histogram h) {
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] += h.buckets[i];
+			count += h.count;
+			sum += h.sum;
+			max = Math.max(max, h.max);
+		}
+
+		/**
+		 * @return The values counted by each bucket
+		 */
+		public synchronized long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		/**
+		 * @return The exclusive upper bound of the bucket values
+		 */
+		public static long getBucketLimit(int bucket) {
+			return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : 1L << bucket;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized double getMean() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		public synchronized long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return The largest value of the bucket holding the given percentile,
+		 *         capped by the maximum value
+		 */
+		public synchronized long getPercentile(double percentile) {
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(getBucketLimit(i) - 1, max);
+			}
+			return 0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("n %d mean %.1f p50 %d p90 %d p99 %d max %d", count, getMean(), getPercentile(50), getPercentile(90), getPercentile(99), max);
+		}
+	}
+}
@@ -1,17 +1,74 @@
 package it.unitn.ds;
 
+import it.unitn.ds.net.NetOverlay;
+import it.unitn.ds.net.SharedRuntime;
+import it.unitn.ds.net.UDPNetOverlay;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 class Test {
 
-	static int N_BRANCHES = 20;
+	static int N_BRANCHES = Integer.getInteger("branches", 20);
+
+	// Overlay used by the branches: udp, tcp or inprocess
+	static String TRANSPORT = System.getProperty("transport", "udp");
+
+	// Encode UDP frames with the compact codec
+	static boolean COMPACT_CODEC = Boolean.getBoolean("compactCodec");
+
+	// Event loops of each UDP overlay, with the native epoll transport (if
+	// available) each of them has its own socket
+	static int EVENT_LOOPS = Integer.getInteger("eventLoops", UDPNetOverlay.DEFAULT_EVENT_LOOPS);
+	static boolean EPOLL = Boolean.getBoolean("epoll");
+
+	// Run all branches on a shared set of threads
+	static boolean SHARED_RUNTIME = Boolean.getBoolean("sharedRuntime");
+
+	// Run every branch on its own (virtual if available) thread, with a shared
+	// runtime only the overlays use its threads
+	static boolean BRANCH_THREADS = Boolean.getBoolean("branchThreads");
+
+	// Accounts held by every branch and number of shards processing them
+	static int ACCOUNTS = Integer.getInteger("accounts", 1);
+	static int SHARDS = Integer.getInteger("shards", 1);
+
+	// Open loop workload: transfers per second for each branch (0 for closed
+	// loop), burst size and destinations skew (uniform, zipf:<exponent> or
+	// hotspot:<fraction>:<probability>)
+	static double RATE = Double.parseDouble(System.getProperty("rate", "0"));
+	static int BURST = Integer.getInteger("burst", 1);
+	static String SKEW = System.getProperty("skew", "uniform");
+
+	// Channels topology: complete[:<tree fanout>] or
+	// ring:<distance>:<tree fanout>, the tree aggregates the local snapshots
+	static String TOPOLOGY = System.getProperty("topology", "complete");
+
+	// Snapshot algorithm: chandylamport or laiyang, the latter runs the UDP
+	// overlay without ordered delivery
+	static SnapshotAlgorithm ALGORITHM = System.getProperty("snapshotAlgorithm", "chandylamport").equals("laiyang") ? SnapshotAlgorithm.LAI_YANG : SnapshotAlgorithm.CHANDY_LAMPORT;
+
+	// Snapshots started at the same time by different branches
+	static int CONCURRENT_SNAPSHOTS = Integer.getInteger("concurrentSnapshots", 1);
+
+	// Snapshot collector: local to the process or remote, a service reached
+	// over its own overlay (tcp by default since reports may be large)
+	static String COLLECTOR = System.getProperty("collector", "local");
+	static String COLLECTOR_TRANSPORT = System.getProperty("collectorTransport", "tcp");
+
+	// Period in milliseconds of the workload statistics report
+	static final long STATS_PERIOD = 5000;
 
 	private static final Map<Integer, InetSocketAddress> branches = new HashMap<Integer, InetSocketAddress>(N_BRANCHES);
 
 	public static void main(String[] args) throws Exception {
+		if (ALGORITHM == SnapshotAlgorithm.LAI_YANG && CONCURRENT_SNAPSHOTS > 1)
+			throw new IllegalArgumentException("Concurrent snapshots not supported by " + ALGORITHM);
+		if (BRANCH_THREADS && (SHARDS > 1 || RATE > 0))
+			throw new IllegalArgumentException("Branch threads require a single shard and a closed loop");
 
 		// Generate branches -> network sockets mapping
 		for (int i = 0; i < N_BRANCHES; i++) {
@@ -21,29 +78,150 @@ class Test {
 		@SuppressWarnings("unchecked")
 		CompletableFuture<Branch>[] b = new CompletableFuture[N_BRANCHES];
 
+		SharedRuntime runtime = SHARED_RUNTIME ? new SharedRuntime() : null;
+
 		branches.keySet().forEach(branchId -> {
 			// Start all branches in parallel
-			b[branchId] = Branch.start(branchId, branches);
+			Branch.Config config = new Branch.Config().overlay(newOverlay(runtime)).accounts(ACCOUNTS, SHARDS).workload(new Workload(RATE, BURST, Workload.uniformAmount(Branch.MAX_TRANSFER), parseSkew(SKEW))).topology(parseTopology(TOPOLOGY)).algorithm(ALGORITHM).runtime(runtime).ownThread(BRANCH_THREADS);
+			b[branchId] = Branch.start(branchId, branches, config);
 		});
 
 		// Wait until all branches are started
 		CompletableFuture.allOf(b).join();
 
+		GlobalSnapshotCollector collector = COLLECTOR.equals("remote") ? startRemoteCollector(b) : GlobalSnapshotCollector.getLocal();
+
 		// Keeps running the global snapshot algorithm
 		int snapshotId = 0;
+		long lastStats = System.currentTimeMillis();
 		while (true) {
-			GlobalSnapshotCollector.initSnapshot(N_BRANCHES);
+			List<CompletableFuture<Long>> globalBalances = new ArrayList<CompletableFuture<Long>>(CONCURRENT_SNAPSHOTS);
+
+			// Start the snapshots from branches evenly spaced by ID, all of them
+			// run at the same time
+			for (int i = 0; i < CONCURRENT_SNAPSHOTS; i++) {
+				globalBalances.add(collector.initSnapshot(snapshotId + i, N_BRANCHES));
+				b[i * N_BRANCHES / CONCURRENT_SNAPSHOTS].get().startSnapshot(snapshotId + i);
+			}
 
-			// Always start snapshot from branch 0 (It can start everywhere but
-			// concurrent snapshots are not supported by branches)
-			b[0].get().startSnapshot(snapshotId);
+			// Wait until the snapshots terminate globally
+			for (int i = 0; i < CONCURRENT_SNAPSHOTS; i++) {
+				long globalBalance = globalBalances.get(i).get();
+				System.out.println("Snapshot " + (snapshotId + i) + " reports a global balance " + globalBalance + ", expected balance was " + N_BRANCHES * Branch.INITIAL_BALANCE);
+			}
+
+			snapshotId = (snapshotId + CONCURRENT_SNAPSHOTS) % Integer.MAX_VALUE;
+
+			if (System.currentTimeMillis() - lastStats > STATS_PERIOD) {
+				lastStats = System.currentTimeMillis();
+				printWorkloadStats(b);
+				printSnapshotMetrics(b, collector);
+			}
+		}
+	}
 
-			// Wait until the snapshot terminates globally
-			long globalBalance = GlobalSnapshotCollector.getGlobalBalance().get();
+	/**
+	 * Print the snapshot phases of all the branches, in microseconds, and the
+	 * channels closed last on average
+	 */
+	private static void printSnapshotMetrics(CompletableFuture<Branch>[] b, GlobalSnapshotCollector collector) {
+		SnapshotMetrics.Histogram firstToken = new SnapshotMetrics.Histogram();
+		SnapshotMetrics.Histogram local = new SnapshotMetrics.Histogram();
+		SnapshotMetrics.Histogram subtree = new SnapshotMetrics.Histogram();
+		SnapshotMetrics.Histogram close = new SnapshotMetrics.Histogram();
+		SnapshotMetrics.Histogram inFlight = new SnapshotMetrics.Histogram();
+		List<String> channels = new ArrayList<String>();
+		Map<String, Double> closeMeans = new HashMap<String, Double>();
 
-			System.out.println("Snapshot " + snapshotId + " reports a global balance " + globalBalance + ", expected balance was " + N_BRANCHES * Branch.INITIAL_BALANCE);
+		for (int i = 0; i < b.length; i++) {
+			SnapshotMetrics m = b[i].join().getSnapshotMetrics();
+			firstToken = firstToken.add(m.getFirstToken());
+			local = local.add(m.getLocalLatency());
+			subtree = subtree.add(m.getSubtreeLatency());
 
-			snapshotId = (snapshotId + 1) % Integer.MAX_VALUE;
+			for (Map.Entry<Integer, SnapshotMetrics.Histogram> c : m.getChannelClose().entrySet()) {
+				String channel = c.getKey() + "->" + i;
+				channels.add(channel);
+				closeMeans.put(channel, c.getValue().getMean());
+				close = close.add(c.getValue());
+			}
+			for (SnapshotMetrics.Histogram h : m.getChannelInFlight().values())
+				inFlight = inFlight.add(h);
 		}
+
+		channels.sort((c1, c2) -> Double.compare(closeMeans.get(c2), closeMeans.get(c1)));
+
+		System.out.println("Snapshot global latency us " + collector.getLatency());
+		System.out.println("Snapshot local latency us " + local);
+		System.out.println("Snapshot first token us " + firstToken);
+		System.out.println("Snapshot subtree latency us " + subtree);
+		System.out.println("Snapshot channel close us " + close);
+		System.out.println("Snapshot channel in-flight transfers " + inFlight);
+		for (String c : channels.subList(0, Math.min(3, channels.size())))
+			System.out.println(String.format("Snapshot slow channel %s mean close %.1f us", c, closeMeans.get(c)));
+	}
+
+	/**
+	 * Start the collector service and a client reporting the local snapshots
+	 * of all the branches to it
+	 * 
+	 * @return The collector of the service
+	 */
+	private static GlobalSnapshotCollector startRemoteCollector(CompletableFuture<Branch>[] b) {
+		int serviceId = N_BRANCHES;
+		int clientId = N_BRANCHES + 1;
+		Map<Integer, InetSocketAddress> nodes = new HashMap<Integer, InetSocketAddress>();
+		nodes.put(serviceId, new InetSocketAddress(1900));
+		nodes.put(clientId, new InetSocketAddress(1901));
+
+		SnapshotCollectorService service = new SnapshotCollectorService(NetOverlay.newInstance(COLLECTOR_TRANSPORT));
+		RemoteSnapshotCollector client = new RemoteSnapshotCollector(NetOverlay.newInstance(COLLECTOR_TRANSPORT), serviceId);
+		CompletableFuture.allOf(service.start(serviceId, nodes), client.start(clientId, nodes)).join();
+
+		for (CompletableFuture<Branch> branch : b)
+			branch.join().setSnapshotCollector(client);
+
+		return service.getCollector();
+	}
+
+	private static void printWorkloadStats(CompletableFuture<Branch>[] b) {
+		Workload.Stats stats = b[0].join().getWorkloadStats();
+		for (int i = 1; i < b.length; i++)
+			stats = stats.add(b[i].join().getWorkloadStats());
+
+		System.out.println("Workload " + stats);
+	}
+
+	private static Workload.Destinations parseSkew(String skew) {
+		String[] v = skew.split(":");
+		switch (v[0]) {
+			case "uniform" :
+				return Workload.roundRobin();
+			case "zipf" :
+				return Workload.zipf(Double.parseDouble(v[1]));
+			case "hotspot" :
+				return Workload.hotSpot(Double.parseDouble(v[1]), Double.parseDouble(v[2]));
+			default :
+				throw new IllegalArgumentException("Invalid destinations skew " + skew);
+		}
+	}
+
+	private static Topology parseTopology(String topology) {
+		String[] v = topology.split(":");
+		switch (v[0]) {
+			case "complete" :
+				return (v.length > 1) ? Topology.complete(Integer.parseInt(v[1])) : Topology.COMPLETE;
+			case "ring" :
+				return Topology.ring(Integer.parseInt(v[1]), Integer.parseInt(v[2]));
+			default :
+				throw new IllegalArgumentException("Invalid topology " + topology);
+		}
+	}
+
+	private static NetOverlay newOverlay(SharedRuntime runtime) {
+		boolean ordered = (ALGORITHM == SnapshotAlgorithm.CHANDY_LAMPORT);
+		if (TRANSPORT.equals("udp"))
+			return new UDPNetOverlay(new UDPNetOverlay.Config().compact(COMPACT_CODEC).ordered(ordered).eventLoops(EVENT_LOOPS).epoll(EPOLL).runtime(runtime));
+		return (runtime != null) ? NetOverlay.newInstance(TRANSPORT, runtime) : NetOverlay.newInstance(TRANSPORT);
 	}
 }
@@ -0,0 +1,147 @@
+package it.unitn.ds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Channels used by the branches. In the complete topology every branch sends
+ * transfers to all the others and snapshot tokens flow on every channel.
+ * In a ring topology branches are sorted by ID and each one is linked to the
+ * closest ones: transfers are restricted to these neighbours, so tokens are
+ * only needed on their channels. A spanning tree rooted at the branch with the
+ * lowest ID is added to propagate the snapshot start (tokens are also sent on
+ * the tree links) and to collect the completion of the local snapshots. The
+ * tree also sums the local snapshots, only its root reports to the collector.
+ * A complete topology may have a spanning tree as well.
+ */
+public class Topology {
+
+	/**
+	 * All-to-all channels, no spanning tree
+	 */
+	public static final Topology COMPLETE = new Topology(0, 0);
+
+	// Neighbours on each side in the ring, 0 for all the branches
+	final int distance;
+
+	// Children of a node in the spanning tree, 0 for no tree
+	final int treeFanout;
+
+	private Topology(int distance, int treeFanout) {
+		this.distance = distance;
+		this.treeFanout = treeFanout;
+	}
+
+	/**
+	 * @param distance
+	 *            Neighbours on each side of a branch in the ring of sorted IDs
+	 * @param treeFanout
+	 *            Children of a node in the spanning tree
+	 */
+	public static Topology ring(int distance, int treeFanout) {
+		if (distance < 1 || treeFanout < 1)
+			throw new IllegalArgumentException("Invalid topology");
+		return new Topology(distance, treeFanout);
+	}
+
+	/**
+	 * @param treeFanout
+	 *            Children of a node in the spanning tree
+	 * @return All-to-all channels with a spanning tree aggregating the local
+	 *         snapshots
+	 */
+	public static Topology complete(int treeFanout) {
+		if (treeFanout < 1)
+			throw new IllegalArgumentException("Invalid topology");
+		return new Topology(0, treeFanout);
+	}
+
+	public boolean isComplete() {
+		return distance == 0;
+	}
+
+	public boolean hasTree() {
+		return treeFanout > 0;
+	}
+
+	/**
+	 * @return The branches the given one sends transfers to, sorted by ID
+	 */
+	List<Integer> neighbours(int localId, Collection<Integer> branches) {
+		List<Integer> sorted = sorted(branches);
+		int n = sorted.size();
+
+		if (isComplete() || 2 * distance >= n - 1) {
+			sorted.remove((Integer) localId);
+			return sorted;
+		}
+
+		int i = sorted.indexOf(localId);
+		TreeSet<Integer> neighbours = new TreeSet<Integer>();
+		for (int k = 1; k <= distance; k++) {
+			neighbours.add(sorted.get((i + k) % n));
+			neighbours.add(sorted.get((i - k + n) % n));
+		}
+		return new ArrayList<Integer>(neighbours);
+	}
+
+	/**
+	 * @return The parent of the branch in the spanning tree, null for the root
+	 *         or without a tree
+	 */
+	Integer treeParent(int localId, Collection<Integer> branches) {
+		if (!hasTree())
+			return null;
+
+		List<Integer> sorted = sorted(branches);
+		int i = sorted.indexOf(localId);
+		return (i == 0) ? null : sorted.get((i - 1) / treeFanout);
+	}
+
+	/**
+	 * @return The children of the branch in the spanning tree, empty without a
+	 *         tree
+	 */
+	List<Integer> treeChildren(int localId, Collection<Integer> branches) {
+		List<Integer> children = new ArrayList<Integer>(treeFanout);
+		if (!hasTree())
+			return children;
+
+		List<Integer> sorted = sorted(branches);
+		int first = sorted.indexOf(localId) * treeFanout + 1;
+		for (int i = first; i < first + treeFanout && i < sorted.size(); i++)
+			children.add(sorted.get(i));
+		return children;
+	}
+
+	/**
+	 * @return The branches exchanging tokens with the given one: its
+	 *         neighbours and its spanning tree links
+	 */
+	List<Integer> tokenPeers(int localId, Collection<Integer> branches) {
+		TreeSet<Integer> peers = new TreeSet<Integer>(neighbours(localId, branches));
+
+		Integer parent = treeParent(localId, branches);
+		if (parent != null)
+			peers.add(parent);
+		peers.addAll(treeChildren(localId, branches));
+
+		return new ArrayList<Integer>(peers);
+	}
+
+	private static List<Integer> sorted(Collection<Integer> branches) {
+		List<Integer> sorted = new ArrayList<Integer>(branches);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	@Override
+	public String toString() {
+		if (isComplete())
+			return hasTree() ? "complete(" + treeFanout + ")" : "complete";
+		return "ring(" + distance + ", " + treeFanout + ")";
+	}
+}
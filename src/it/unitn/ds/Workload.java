@@ -0,0 +1,222 @@
+package it.unitn.ds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Transfers workload issued by the branches: offered rate, amounts
+ * distribution, destinations skew and burstiness.
+ * With a zero rate every shard of a branch sends a new transfer as soon as the
+ * previous one is delivered (closed loop), otherwise transfers are issued at
+ * the given rate regardless of their delivery (open loop).
+ */
+public class Workload {
+
+	/**
+	 * Closed loop workload with uniform amounts and destinations
+	 */
+	public static final Workload CLOSED_LOOP = new Workload(0, 1, uniformAmount(Branch.MAX_TRANSFER), roundRobin());
+
+	final double rate;
+	final int burstSize;
+	final AmountDistribution amounts;
+	final Destinations destinations;
+
+	/**
+	 * @param rate
+	 *            Transfers per second offered by each branch, 0 for a closed
+	 *            loop
+	 * @param burstSize
+	 *            Transfers issued back to back, the average rate is unchanged
+	 * @param amounts
+	 *            Distribution of the transferred amounts
+	 * @param destinations
+	 *            Distribution of the destination branches
+	 */
+	public Workload(double rate, int burstSize, AmountDistribution amounts, Destinations destinations) {
+		if (rate < 0 || burstSize < 1)
+			throw new IllegalArgumentException("Invalid workload rate");
+
+		this.rate = rate;
+		this.burstSize = burstSize;
+		this.amounts = amounts;
+		this.destinations = destinations;
+	}
+
+	public boolean isOpenLoop() {
+		return rate > 0;
+	}
+
+	/**
+	 * Distribution of the transferred amounts
+	 */
+	public interface AmountDistribution {
+
+		/**
+		 * @return An amount between 1 and the available balance
+		 */
+		long next(Random rand, long available);
+	}
+
+	/**
+	 * Creates the destination selector used by a branch
+	 */
+	public interface Destinations {
+
+		DestinationSelector newSelector(int localId, Collection<Integer> branches);
+	}
+
+	/**
+	 * Chooses the destination branch of the transfers, not thread safe
+	 */
+	public interface DestinationSelector {
+
+		int next(Random rand);
+	}
+
+	/**
+	 * Amounts uniformly distributed between 1 and max
+	 */
+	public static AmountDistribution uniformAmount(int max) {
+		return (rand, available) -> {
+			int maxValue = (int) Math.min(max, available);
+			return (maxValue > 0) ? 1 + (rand.nextInt(maxValue)) : 1;
+		};
+	}
+
+	/**
+	 * Always the same amount, if available
+	 */
+	public static AmountDistribution fixedAmount(long amount) {
+		return (rand, available) -> Math.min(amount, available);
+	}
+
+	/**
+	 * Every other branch is chosen once in random order, then the order is
+	 * shuffled again
+	 */
+	public static Destinations roundRobin() {
+		return (localId, branches) -> {
+			List<Integer> randBranches = otherBranches(localId, branches);
+			Collections.shuffle(randBranches);
+
+			return new DestinationSelector() {
+
+				private int nextBranch = 0;
+
+				@Override
+				public int next(Random rand) {
+					if (nextBranch == randBranches.size()) {
+						Collections.shuffle(randBranches, rand);
+						nextBranch = 0;
+					}
+					return randBranches.get(nextBranch++);
+				}
+			};
+		};
+	}
+
+	/**
+	 * Branches chosen with a Zipf distribution, the rank of a branch is the
+	 * same for all senders so that low IDs are the most popular
+	 *
+	 * @param exponent
+	 *            Skew of the distribution, 0 is uniform
+	 */
+	public static Destinations zipf(double exponent) {
+		return (localId, branches) -> {
+			List<Integer> ranked = otherBranches(localId, branches);
+
+			double[] cdf = new double[ranked.size()];
+			double sum = 0;
+			for (int i = 0; i < cdf.length; i++) {
+				sum += 1 / Math.pow(i + 1, exponent);
+				cdf[i] = sum;
+			}
+
+			double total = sum;
+			return (rand) -> {
+				int i = Arrays.binarySearch(cdf, rand.nextDouble() * total);
+				return ranked.get(Math.min((i >= 0) ? i : -i - 1, cdf.length - 1));
+			};
+		};
+	}
+
+	/**
+	 * A fraction of the branches (the ones with lowest IDs) receives the given
+	 * share of the transfers, the others are chosen uniformly
+	 *
+	 * @param hotFraction
+	 *            Fraction of hot branches
+	 * @param hotProbability
+	 *            Probability for a transfer to go to a hot branch
+	 */
+	public static Destinations hotSpot(double hotFraction, double hotProbability) {
+		return (localId, branches) -> {
+			List<Integer> ranked = otherBranches(localId, branches);
+			int hot = Math.max(1, Math.min(ranked.size(), (int) Math.round(ranked.size() * hotFraction)));
+			int cold = ranked.size() - hot;
+
+			return (rand) -> {
+				if (cold == 0 || rand.nextDouble() < hotProbability)
+					return ranked.get(rand.nextInt(hot));
+				return ranked.get(hot + rand.nextInt(cold));
+			};
+		};
+	}
+
+	// Sorted IDs of the other branches
+	private static List<Integer> otherBranches(int localId, Collection<Integer> branches) {
+		List<Integer> others = new ArrayList<Integer>(branches);
+		others.remove((Integer) localId);
+		Collections.sort(others);
+		return others;
+	}
+
+	/**
+	 * Workload counters since the start of the branch
+	 */
+	public static class Stats {
+
+		public final long elapsedNanos;
+		public final long offered;
+		public final long sent;
+		public final long delivered;
+		public final long failed;
+		public final long skipped;
+
+		Stats(long elapsedNanos, long offered, long sent, long delivered, long failed, long skipped) {
+			this.elapsedNanos = elapsedNanos;
+			this.offered = offered;
+			this.sent = sent;
+			this.delivered = delivered;
+			this.failed = failed;
+			this.skipped = skipped;
+		}
+
+		/**
+		 * @return The sum of the given statistics, the elapsed time is the
+		 *         longest one
+		 */
+		public Stats add(Stats s) {
+			return new Stats(Math.max(elapsedNanos, s.elapsedNanos), offered + s.offered, sent + s.sent, delivered + s.delivered, failed + s.failed, skipped + s.skipped);
+		}
+
+		public double getOfferedRate() {
+			return offered / (elapsedNanos / 1e9);
+		}
+
+		public double getAchievedRate() {
+			return delivered / (elapsedNanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("offered %.1f/s achieved %.1f/s (offered %d, sent %d, delivered %d, failed %d, skipped %d)", getOfferedRate(), getAchievedRate(), offered, sent, delivered, failed, skipped);
+		}
+	}
+}
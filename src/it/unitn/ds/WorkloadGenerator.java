@@ -0,0 +1,113 @@
+package it.unitn.ds;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps the statistics of offered and delivered transfers of a shard and, for
+ * an open loop workload, issues the transfers at the target rate. Due
+ * transfers are computed at every tick and passed to the issuer, in groups of
+ * the burst size.
+ */
+class WorkloadGenerator {
+
+	// Ticks period in milliseconds
+	public static final long TICK = 1;
+
+	// Ticks all the generators of the process
+	private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Workload Generator");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final double ratePerNano;
+	private final int burstSize;
+
+	private final LongAdder offered = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+
+	private final long startTime = System.nanoTime();
+
+	// Transfers due but not yet issued, only accessed by the ticker
+	private double credit = 0;
+	private long lastTick = startTime;
+
+	private ScheduledFuture<?> ticks;
+
+	/**
+	 * @param rate
+	 *            Transfers per second
+	 * @param burstSize
+	 *            Transfers issued together
+	 */
+	WorkloadGenerator(double rate, int burstSize) {
+		this.ratePerNano = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burstSize = burstSize;
+	}
+
+	/**
+	 * Start issuing the due transfers to the given issuer, that is called by
+	 * the ticker thread
+	 */
+	synchronized void start(IntConsumer issuer) {
+		if (ratePerNano > 0)
+			ticks = TICKER.scheduleAtFixedRate(() -> tick(issuer), TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (ticks != null)
+			ticks.cancel(false);
+	}
+
+	private void tick(IntConsumer issuer) {
+		long now = System.nanoTime();
+		credit += (now - lastTick) * ratePerNano;
+		lastTick = now;
+
+		int due = (int) (credit / burstSize) * burstSize;
+		if (due == 0)
+			return;
+
+		credit -= due;
+		offered.add(due);
+		issuer.accept(due);
+	}
+
+	void transferOffered() {
+		offered.increment();
+	}
+
+	void transferSent() {
+		sent.increment();
+	}
+
+	void transferCompleted(boolean isDelivered) {
+		if (isDelivered)
+			delivered.increment();
+		else
+			failed.increment();
+	}
+
+	// Offered transfer not sent since no money was available or too many
+	// transfers were waiting to be delivered
+	void transferSkipped() {
+		skipped.increment();
+	}
+
+	Workload.Stats getStats() {
+		return new Workload.Stats(System.nanoTime() - startTime, offered.sum(), sent.sum(), delivered.sum(), failed.sum(), skipped.sum());
+	}
+}
@@ -11,17 +11,15 @@ import it.unitn.ds.net.NetOverlay.Message;
 @Sharable
 public class AppMsgHandler extends ChannelInboundHandlerAdapter {
 
-	private final UDPNetOverlay no;
+	private final MessageInbox inbox;
 
-	public AppMsgHandler(UDPNetOverlay no) {
-		this.no = no;
+	public AppMsgHandler(MessageInbox inbox) {
+		this.inbox = inbox;
 	}
 
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object in) throws Exception {
-		synchronized (no) {
-			no.messageReceived((Message) in);
-		}
+		inbox.add((Message) in);
 	}
 
 	@Override
@@ -0,0 +1,287 @@
+package it.unitn.ds.net;
+
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Overlay network between branches running in the same process. Messages are
+ * passed by reference through in-memory FIFO channels, without any encoding,
+ * so they must not be modified once sent.
+ * Network delay, message loss and reordering can be optionally injected: a
+ * lost message is delivered after a retransmission delay, as the link layer of
+ * the UDP overlay would do, while a reordered message does not wait for the
+ * ones sent before it on the same channel. Reordering breaks the FIFO channels
+ * assumption of the snapshot algorithm and is meant to test its sensitivity.
+ */
+public class InProcessNetOverlay implements NetOverlay {
+
+	// Delay in microseconds before delivering again a lost message, and
+	// before retrying to reach a branch not started yet
+	public static final long RETRANSMISSION_DELAY = 20000;
+
+	// Delivery attempts to a branch not started before giving up
+	public static final int MAX_RETRIES = 10;
+
+	// Delay in microseconds before retrying a delivery to a full inbox
+	private static final long BACKOFF_DELAY = 100;
+
+	// Overlays started in the process, by bound address
+	private static final ConcurrentMap<InetSocketAddress, InProcessNetOverlay> LOCAL_NODES = new ConcurrentHashMap<InetSocketAddress, InProcessNetOverlay>();
+
+	// Delivers delayed messages of all the overlays
+	private static final ScheduledExecutorService NETWORK = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "In-Process Network");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final long delayMicros;
+	private final long jitterMicros;
+	private final double lossRate;
+	private final double reorderRate;
+
+	private final MessageInbox inbox = new MessageInbox();
+
+	// Outgoing channels by destination branch
+	private final Map<Integer, Link> links = new ConcurrentHashMap<Integer, Link>();
+
+	int localBranch;
+	Map<Integer, InetSocketAddress> branches;
+
+	private InetSocketAddress localAddr;
+
+	/**
+	 * Overlay delivering messages immediately, without faults
+	 */
+	public InProcessNetOverlay() {
+		this(0, 0, 0, 0);
+	}
+
+	/**
+	 * @param delayMicros
+	 *            Minimum delivery delay in microseconds
+	 * @param jitterMicros
+	 *            Maximum random delay in microseconds added to each message
+	 * @param lossRate
+	 *            Probability for a message to be lost at each transmission
+	 * @param reorderRate
+	 *            Probability for a message to overtake the previous ones on
+	 *            its channel
+	 */
+	public InProcessNetOverlay(long delayMicros, long jitterMicros, double lossRate, double reorderRate) {
+		if (delayMicros < 0 || jitterMicros < 0)
+			throw new IllegalArgumentException("Invalid delay");
+		if (lossRate < 0 || lossRate >= 1 || reorderRate < 0 || reorderRate > 1)
+			throw new IllegalArgumentException("Invalid probability");
+
+		this.delayMicros = delayMicros;
+		this.jitterMicros = jitterMicros;
+		this.lossRate = lossRate;
+		this.reorderRate = reorderRate;
+	}
+
+	@Override
+	public CompletableFuture<Void> start(int localBranch, Map<Integer, InetSocketAddress> branches) {
+		this.localBranch = localBranch;
+		this.branches = branches;
+
+		localAddr = branches.get(localBranch);
+		if (localAddr == null)
+			throw new IllegalArgumentException("Invalid local branch ID");
+
+		CompletableFuture<Void> startFut = new CompletableFuture<Void>();
+		if (LOCAL_NODES.putIfAbsent(localAddr, this) != null)
+			startFut.completeExceptionally(new BindException("Address already in use: " + localAddr));
+		else
+			startFut.complete(null);
+
+		return startFut;
+	}
+
+	@Override
+	public void stop() {
+		if (localAddr != null)
+			LOCAL_NODES.remove(localAddr, this);
+	}
+
+	@Override
+	public CompletableFuture<Message> sendMessage(int remoteBranch, Message msg) {
+
+		if (!branches.containsKey(remoteBranch))
+			throw new IllegalArgumentException("Invalid branch ID");
+
+		if (localAddr == null)
+			throw new IllegalStateException("Overlay not started");
+
+		msg.destId = remoteBranch;
+		msg.senderId = localBranch;
+		msg.deliveryFut = new CompletableFuture<Message>();
+
+		links.computeIfAbsent(remoteBranch, Link::new).send(msg);
+
+		return msg.deliveryFut;
+	}
+
+	@Override
+	public void setMessageListener(Runnable listener, Executor executor) {
+		inbox.setListener(listener, executor);
+	}
+
+	@Override
+	public int drainMessages(int maxMessages, Consumer<Message> consumer) {
+		return inbox.drain(maxMessages, consumer);
+	}
+
+	private boolean isFaulty() {
+		return delayMicros > 0 || jitterMicros > 0 || lossRate > 0 || reorderRate > 0;
+	}
+
+	/**
+	 * Message waiting on a channel for its delivery time
+	 */
+	private static class PendingMessage {
+
+		final Message msg;
+		final long deliveryTime;
+
+		PendingMessage(Message msg, long deliveryTime) {
+			this.msg = msg;
+			this.deliveryTime = deliveryTime;
+		}
+	}
+
+	/**
+	 * FIFO channel to a remote branch
+	 */
+	private class Link {
+
+		private final int destId;
+		private final Random rand = new Random();
+
+		// Messages in transit, ordered by delivery time
+		private final ArrayDeque<PendingMessage> inTransit = new ArrayDeque<PendingMessage>();
+
+		// Delivery time of the last message sent in order
+		private long lastDeliveryTime;
+
+		private boolean deliveryScheduled;
+		private int retries;
+
+		Link(int destId) {
+			this.destId = destId;
+		}
+
+		synchronized void send(Message msg) {
+			long now = System.nanoTime();
+
+			// Fast path: direct delivery when no fault is injected
+			if (!isFaulty() && inTransit.isEmpty()) {
+				InProcessNetOverlay peer = LOCAL_NODES.get(branches.get(destId));
+				if (peer != null && deliver(peer, msg))
+					return;
+			}
+
+			long delay = delayMicros + (jitterMicros > 0 ? (long) (rand.nextDouble() * jitterMicros) : 0);
+
+			// Every loss costs a retransmission
+			while (lossRate > 0 && rand.nextDouble() < lossRate)
+				delay += RETRANSMISSION_DELAY;
+
+			long deliveryTime = now + TimeUnit.MICROSECONDS.toNanos(delay);
+
+			if (reorderRate > 0 && rand.nextDouble() < reorderRate) {
+				// Reordered: delivered on its own regardless of the channel
+				NETWORK.schedule(() -> deliverReordered(msg), delay, TimeUnit.MICROSECONDS);
+				return;
+			}
+
+			// In order: never delivered before the previous messages
+			deliveryTime = Math.max(deliveryTime, lastDeliveryTime);
+			lastDeliveryTime = deliveryTime;
+
+			inTransit.add(new PendingMessage(msg, deliveryTime));
+			if (!deliveryScheduled)
+				scheduleDelivery(deliveryTime - now);
+		}
+
+		private void scheduleDelivery(long delayNanos) {
+			deliveryScheduled = true;
+			NETWORK.schedule(this::deliverPending, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+		}
+
+		private synchronized void deliverPending() {
+			deliveryScheduled = false;
+
+			InProcessNetOverlay peer = LOCAL_NODES.get(branches.get(destId));
+			if (peer == null) {
+				unreachable();
+				return;
+			}
+			retries = 0;
+
+			long now = System.nanoTime();
+			PendingMessage p;
+			while ((p = inTransit.peek()) != null && p.deliveryTime - now <= 0) {
+				// Destination inbox full: retry later
+				if (!deliver(peer, p.msg)) {
+					scheduleDelivery(TimeUnit.MICROSECONDS.toNanos(BACKOFF_DELAY));
+					return;
+				}
+				inTransit.poll();
+			}
+
+			if (p != null)
+				scheduleDelivery(p.deliveryTime - now);
+		}
+
+		private void deliverReordered(Message msg) {
+			InProcessNetOverlay peer = LOCAL_NODES.get(branches.get(destId));
+			if (peer == null)
+				msg.deliveryFut.completeExceptionally(new PortUnreachableException("Branch " + destId + " unreachable"));
+			else if (!deliver(peer, msg))
+				NETWORK.schedule(() -> deliverReordered(msg), BACKOFF_DELAY, TimeUnit.MICROSECONDS);
+		}
+
+		// Destination not started yet: retry later, then give up on all the
+		// messages in transit
+		private void unreachable() {
+			if (++retries <= MAX_RETRIES) {
+				scheduleDelivery(TimeUnit.MICROSECONDS.toNanos(RETRANSMISSION_DELAY));
+				return;
+			}
+
+			retries = 0;
+			PortUnreachableException cause = new PortUnreachableException("Branch " + destId + " unreachable");
+			PendingMessage p;
+			while ((p = inTransit.poll()) != null)
+				p.msg.deliveryFut.completeExceptionally(cause);
+		}
+
+		// Never waits for the destination: branches sending to each other
+		// would otherwise block on their full inboxes
+		private boolean deliver(InProcessNetOverlay peer, Message msg) {
+			if (!peer.inbox.offer(msg))
+				return false;
+
+			msg.deliveryFut.complete(msg);
+			return true;
+		}
+	}
+}
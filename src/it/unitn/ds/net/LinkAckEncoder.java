@@ -3,38 +3,123 @@ package it.unitn.ds.net;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
 import it.unitn.ds.net.LinkAckEncoder.MessageAck;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Encode ack messages
+ * Encode ack messages into datagrams addressed to the acknowledged branch
  */
 @Sharable
-public class LinkAckEncoder extends MessageToByteEncoder<MessageAck> {
+public class LinkAckEncoder extends MessageToMessageEncoder<MessageAck> {
 
 	public static final byte LNK_ACK = 0x2;
 
+	private final Map<Integer, InetSocketAddress> branches;
+
+	// Use the compact codec
+	private final boolean compact;
+
+	public LinkAckEncoder(Map<Integer, InetSocketAddress> branches) {
+		this(branches, false);
+	}
+
+	public LinkAckEncoder(Map<Integer, InetSocketAddress> branches, boolean compact) {
+		this.branches = branches;
+		this.compact = compact;
+	}
+
 	@Override
-	protected void encode(ChannelHandlerContext ctx, MessageAck msg, ByteBuf out) throws Exception {
-		// Link layer header
-		out.writeByte(LNK_ACK);
-		out.writeInt(msg.seqn);
-		out.writeInt(msg.senderId);
+	protected void encode(ChannelHandlerContext ctx, MessageAck msg, List<Object> out) throws Exception {
+		ByteBuf buf;
+		if (compact) {
+			buf = ctx.alloc().buffer(1 + VarInts.sizeOfInt(msg.seqn) + VarInts.sizeOfInt(msg.senderId) + VarInts.sizeOfLong(msg.sackBits));
+			buf.writeByte(LinkDataEncoder.frameType(LNK_ACK, true));
+			VarInts.writeInt(buf, msg.seqn);
+			VarInts.writeInt(buf, msg.senderId);
+			VarInts.writeLong(buf, msg.sackBits);
+		} else {
+			buf = encodeFixed(ctx, msg);
+		}
+
+		// Not a DatagramPacket, see LinkDataEncoder
+		out.add(new DefaultAddressedEnvelope<ByteBuf, InetSocketAddress>(buf, branches.get(msg.destId)));
+
+		// Encoded acks are returned to the pool
+		msg.recycle();
 	}
 
+	private static ByteBuf encodeFixed(ChannelHandlerContext ctx, MessageAck msg) {
+		ByteBuf buf = ctx.alloc().buffer(17);
+
+		// Link layer header, the sequence number acknowledges all the
+		// messages up to it
+		buf.writeByte(LNK_ACK);
+		buf.writeInt(msg.seqn);
+		buf.writeInt(msg.senderId);
+
+		// Selective acknowledgement of the messages following the first
+		// missing one
+		buf.writeLong(msg.sackBits);
+		return buf;
+	}
+
+	/**
+	 * Pooled acknowledgement message, instances are recycled once encoded or
+	 * processed
+	 */
 	static class MessageAck {
 
+		private static final Recycler<MessageAck> RECYCLER = new Recycler<MessageAck>() {
+
+			@Override
+			protected MessageAck newObject(Handle handle) {
+				return new MessageAck(handle);
+			}
+		};
+
+		private final Handle handle;
+
 		int seqn;
 		int senderId;
+		int destId;
+
+		// Bit i is set if message seqn + 2 + i was received out of order
+		long sackBits;
+
+		private MessageAck(Handle handle) {
+			this.handle = handle;
+		}
+
+		static MessageAck newInstance(int seqn, int senderId) {
+			MessageAck ack = RECYCLER.get();
+			ack.seqn = seqn;
+			ack.senderId = senderId;
+			return ack;
+		}
+
+		static MessageAck newInstance(int seqn, int senderId, int destId) {
+			MessageAck ack = newInstance(seqn, senderId);
+			ack.destId = destId;
+			return ack;
+		}
 
-		public MessageAck(int seqn, int senderId) {
-			this.seqn = seqn;
-			this.senderId = senderId;
+		void recycle() {
+			seqn = 0;
+			senderId = 0;
+			destId = 0;
+			sackBits = 0;
+			RECYCLER.recycle(this, handle);
 		}
 
 		@Override
 		public String toString() {
-			return "MessageAck [seqn=" + seqn + ", senderId=" + senderId + "]";
+			return "MessageAck [seqn=" + seqn + ", senderId=" + senderId + ", sackBits=" + Long.toHexString(sackBits) + "]";
 		}
 
 		@Override
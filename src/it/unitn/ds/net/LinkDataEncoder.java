@@ -1,45 +1,497 @@
 package it.unitn.ds.net;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
 import it.unitn.ds.net.NetOverlay.Message;
+import it.unitn.ds.net.NetOverlay.SnapshotDone;
+import it.unitn.ds.net.NetOverlay.SnapshotReport;
 import it.unitn.ds.net.NetOverlay.Token;
 import it.unitn.ds.net.NetOverlay.Transfer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Encode data messages
+ * Encode data messages into datagrams addressed to the destination branch.
+ * Messages written for the same destination are batched in a single frame
+ * made of a link header followed by one record for each message. A frame is
+ * sent when it reaches the frame size budget, when the channel is flushed or
+ * at the end of the linger time started by its first message
+ * Frames use either fixed-size fields or, with the compact codec, variable
+ * length fields and sequence numbers encoded as the difference from the
+ * previous record. The codec version is carried by the high nibble of the
+ * frame type, the fixed-size layout being version 0
+ * Not sharable since it keeps the frames under construction for the channel
  */
-@Sharable
-class LinkDataEncoder extends MessageToByteEncoder<Message> {
+class LinkDataEncoder extends ChannelOutboundHandlerAdapter {
 
 	// Link level message types
 	public static final byte LNK_DATA = 0x1;
+	public static final byte LNK_DATA_ACK = 0x3;
+
+	// Version of the compact codec
+	public static final int COMPACT_VERSION = 1;
 
 	// Application level message types
 	public static final byte APP_MONEY_TRANSFER = 0x1;
 	public static final byte APP_TOKEN = 0x2;
+	public static final byte APP_ACCOUNT_TRANSFER = 0x3;
+	public static final byte APP_SNAPSHOT_DONE = 0x4;
+	public static final byte APP_TAGGED_TRANSFER = 0x5;
+	public static final byte APP_SNAPSHOT_REPORT = 0x6;
+
+	// Flag of the application type set on the first record sent after the
+	// link was reset, the receiver skips the abandoned sequence numbers
+	public static final int APP_RESYNC = 0x80;
+
+	// Maximum frame size in bytes, fits in a standard ethernet MTU
+	public static final int MAX_FRAME_SIZE = 1400;
+
+	// Frame header: type, senderId, piggybacked ack, records count
+	private static final int FRAME_HEADER_SIZE = 1 + 4 + 4 + 2;
+
+	// Largest compact frame header: records count is at most 2 bytes
+	private static final int COMPACT_HEADER_SIZE = 1 + 5 + 5 + 2;
+
+	// Largest record: seqn, application type, account, epoch and value
+	static final int RECORD_SIZE = 4 + 1 + 4 + 8 + 8;
+
+	private final Map<Integer, InetSocketAddress> branches;
+
+	// Use the compact codec
+	private final boolean compact;
+
+	// Time in microseconds a frame waits for more messages before being sent,
+	// if zero frames are sent at the end of the current event loop run
+	private final long lingerMicros;
+
+	// Frames under construction for each destination
+	private final Map<Integer, Frame> frames = new HashMap<Integer, Frame>();
+	private boolean flushScheduled = false;
+
+	public LinkDataEncoder(Map<Integer, InetSocketAddress> branches) {
+		this(branches, 0);
+	}
+
+	public LinkDataEncoder(Map<Integer, InetSocketAddress> branches, long lingerMicros) {
+		this(branches, lingerMicros, false);
+	}
+
+	public LinkDataEncoder(Map<Integer, InetSocketAddress> branches, long lingerMicros, boolean compact) {
+		this.branches = branches;
+		this.lingerMicros = lingerMicros;
+		this.compact = compact;
+	}
+
+	/**
+	 * @return The type byte of a frame for the codec in use
+	 */
+	static byte frameType(byte type, boolean compact) {
+		return compact ? (byte) ((COMPACT_VERSION << 4) | type) : type;
+	}
 
 	@Override
-	protected void encode(ChannelHandlerContext ctx, Message msg, ByteBuf out) throws Exception {
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (!(msg instanceof Message)) {
+			ctx.write(msg, promise);
+			return;
+		}
+
+		Message m = (Message) msg;
+		Frame f = frames.get(m.destId);
+
+		// A record never fits a datagram, rejected by the overlay before
+		// entering the send window
+		if (!fitsFrame(m, compact)) {
+			promise.tryFailure(new IllegalArgumentException("Message too large for a datagram: " + m));
+			return;
+		}
+
+		if (f != null && f.size + recordSize(f, m) > MAX_FRAME_SIZE) {
+			// Frame budget reached: send it right away
+			frames.remove(m.destId);
+			writeFrame(ctx, m.destId, f);
+			ctx.flush();
+			f = null;
+		}
+
+		if (f == null) {
+			f = Frame.newInstance(compact ? COMPACT_HEADER_SIZE : FRAME_HEADER_SIZE);
+			frames.put(m.destId, f);
+		}
+
+		f.add(m, promise, recordSize(f, m));
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			if (lingerMicros > 0)
+				ctx.executor().schedule(() -> flushFrames(ctx), lingerMicros, TimeUnit.MICROSECONDS);
+			else
+				ctx.executor().execute(() -> flushFrames(ctx));
+		}
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		flushFrames(ctx);
+	}
+
+	private void flushFrames(ChannelHandlerContext ctx) {
+		flushScheduled = false;
+
+		for (Map.Entry<Integer, Frame> e : frames.entrySet())
+			writeFrame(ctx, e.getKey(), e.getValue());
+		frames.clear();
+
+		ctx.flush();
+	}
+
+	private void writeFrame(ChannelHandlerContext ctx, int destId, Frame f) {
+		ByteBuf buf = ctx.alloc().buffer(f.size);
+		try {
+			if (compact)
+				encodeCompactFrame(f, buf);
+			else
+				encodeFrame(f, buf);
+		} catch (Exception e) {
+			buf.release();
+			f.fail(e);
+			f.recycle();
+			return;
+		}
+
+		// Written as a plain addressed envelope: the epoll transport of Netty
+		// 4.0.33 sends consecutive DatagramPackets with a single sendmmsg call
+		// that addresses all of them to the same recipient, other envelopes
+		// are sent one at a time
+		ctx.write(new DefaultAddressedEnvelope<ByteBuf, InetSocketAddress>(buf, branches.get(destId))).addListener((ChannelFuture future) -> {
+			if (future.isSuccess())
+				f.succeed();
+			else
+				f.fail(future.cause());
+			f.recycle();
+		});
+	}
+
+	private void encodeFrame(Frame f, ByteBuf buf) throws Exception {
 		// Link layer header
-		out.writeByte(LNK_DATA);
-		out.writeInt(msg.seqn);
-		out.writeInt(msg.getSenderId());
+		buf.writeByte(f.hasAck ? LNK_DATA_ACK : LNK_DATA);
+		buf.writeInt(f.senderId);
+
+		// Piggybacked cumulative acknowledgement
+		if (f.hasAck)
+			buf.writeInt(f.ackSeqn);
+
+		buf.writeShort(f.messages.size());
 
-		encodeDataPayload(msg, out);
+		// Application records
+		for (Message m : f.messages) {
+			buf.writeInt(m.seqn);
+			int typeIndex = buf.writerIndex();
+			encodeDataPayload(m, buf);
+			if (m.resync)
+				buf.setByte(typeIndex, buf.getByte(typeIndex) | APP_RESYNC);
+		}
 	}
 
-	private void encodeDataPayload(Message msg, ByteBuf out) throws Exception {
+	private void encodeCompactFrame(Frame f, ByteBuf buf) throws Exception {
+		// Link layer header
+		buf.writeByte(frameType(f.hasAck ? LNK_DATA_ACK : LNK_DATA, true));
+		VarInts.writeInt(buf, f.senderId);
+
+		// Piggybacked cumulative acknowledgement
+		if (f.hasAck)
+			VarInts.writeInt(buf, f.ackSeqn);
+
+		VarInts.writeInt(buf, f.messages.size());
+
+		// Application records, the first seqn is sent in full and the others
+		// as the gap from the previous one, zero for consecutive messages
+		Message prev = null;
+		for (Message m : f.messages) {
+			if (prev == null)
+				VarInts.writeInt(buf, m.seqn);
+			else
+				VarInts.writeSignedInt(buf, m.seqn - prev.seqn - 1);
+			int typeIndex = buf.writerIndex();
+			encodeCompactPayload(m, buf);
+			if (m.resync)
+				buf.setByte(typeIndex, buf.getByte(typeIndex) | APP_RESYNC);
+			prev = m;
+		}
+	}
+
+	// Encoded size of the message appended to the frame
+	private int recordSize(Frame f, Message m) {
+		if (!compact)
+			return 4 + dataPayloadSize(m);
+
+		int size;
+		if (f.messages.isEmpty())
+			size = VarInts.sizeOfInt(m.seqn);
+		else
+			size = VarInts.sizeOfSignedInt(m.seqn - f.messages.get(f.messages.size() - 1).seqn - 1);
+
+		// Application type
+		size += 1;
+
+		if (m.getClass() == Transfer.class) {
+			Transfer t = (Transfer) m;
+			if (t.getEpoch() != Transfer.NO_EPOCH)
+				size += VarInts.sizeOfInt(t.getAccount()) + VarInts.sizeOfSignedLong(t.getEpoch());
+			else if (t.getAccount() != 0)
+				size += VarInts.sizeOfInt(t.getAccount());
+			size += VarInts.sizeOfSignedLong(t.getAmount());
+		} else if (m.getClass() == Token.class) {
+			size += VarInts.sizeOfSignedLong(((Token) m).getSnapshotId());
+		} else if (m.getClass() == SnapshotDone.class) {
+			SnapshotDone d = (SnapshotDone) m;
+			size += VarInts.sizeOfSignedLong(d.getSnapshotId()) + VarInts.sizeOfSignedLong(d.getTotal()) + VarInts.sizeOfInt(d.getBranches());
+		} else if (m.getClass() == SnapshotReport.class) {
+			size += compactReportSize((SnapshotReport) m);
+		}
+		return size;
+	}
+
+	// Largest encoded size of the message in any frame
+	private static int maxRecordSize(Message m, boolean compact) {
+		if (!compact)
+			return 4 + dataPayloadSize(m);
+		return 5 + 1 + ((m.getClass() == SnapshotReport.class) ? compactReportSize((SnapshotReport) m) : RECORD_SIZE);
+	}
+
+	/**
+	 * @return true if the message fits a frame of the given codec
+	 */
+	static boolean fitsFrame(Message m, boolean compact) {
+		return (compact ? COMPACT_HEADER_SIZE : FRAME_HEADER_SIZE) + maxRecordSize(m, compact) <= MAX_FRAME_SIZE;
+	}
+
+	/**
+	 * Write the application type and value of the message with variable
+	 * length fields
+	 */
+	static void encodeCompactPayload(Message msg, ByteBuf out) throws Exception {
+		if (msg.getClass() == Transfer.class) {
+			Transfer t = (Transfer) msg;
+			if (t.getEpoch() != Transfer.NO_EPOCH) {
+				out.writeByte(APP_TAGGED_TRANSFER);
+				VarInts.writeInt(out, t.getAccount());
+				VarInts.writeSignedLong(out, t.getEpoch());
+			} else if (t.getAccount() == 0) {
+				out.writeByte(APP_MONEY_TRANSFER);
+			} else {
+				out.writeByte(APP_ACCOUNT_TRANSFER);
+				VarInts.writeInt(out, t.getAccount());
+			}
+			VarInts.writeSignedLong(out, t.getAmount());
+		} else if (msg.getClass() == Token.class) {
+			out.writeByte(APP_TOKEN);
+			VarInts.writeSignedLong(out, ((Token) msg).getSnapshotId());
+		} else if (msg.getClass() == SnapshotDone.class) {
+			SnapshotDone d = (SnapshotDone) msg;
+			out.writeByte(APP_SNAPSHOT_DONE);
+			VarInts.writeSignedLong(out, d.getSnapshotId());
+			VarInts.writeSignedLong(out, d.getTotal());
+			VarInts.writeInt(out, d.getBranches());
+		} else if (msg.getClass() == SnapshotReport.class) {
+			SnapshotReport r = (SnapshotReport) msg;
+			out.writeByte(APP_SNAPSHOT_REPORT);
+			VarInts.writeSignedLong(out, r.getSnapshotId());
+			VarInts.writeSignedInt(out, r.getBranchId());
+			VarInts.writeSignedLong(out, r.getBalance());
+			VarInts.writeSignedLong(out, r.getIncoming());
+			VarInts.writeInt(out, r.getAggregated());
+			if (r.getParentId() == null) {
+				out.writeByte(0);
+			} else {
+				out.writeByte(1);
+				VarInts.writeSignedLong(out, r.getParentId());
+			}
+			writeCompactMap(out, r.getAccounts());
+			writeCompactMap(out, r.getSent());
+			writeCompactMap(out, r.getReceived());
+		} else {
+			throw new Exception("Unknown message type");
+		}
+	}
+
+	// Size of the report value written by encodeCompactPayload
+	private static int compactReportSize(SnapshotReport r) {
+		int size = VarInts.sizeOfSignedLong(r.getSnapshotId()) + VarInts.sizeOfSignedInt(r.getBranchId());
+		size += VarInts.sizeOfSignedLong(r.getBalance()) + VarInts.sizeOfSignedLong(r.getIncoming()) + VarInts.sizeOfInt(r.getAggregated());
+		size += 1 + ((r.getParentId() == null) ? 0 : VarInts.sizeOfSignedLong(r.getParentId()));
+		return size + compactMapSize(r.getAccounts()) + compactMapSize(r.getSent()) + compactMapSize(r.getReceived());
+	}
+
+	private static void writeCompactMap(ByteBuf out, Map<Integer, Long> map) {
+		VarInts.writeInt(out, map.size());
+		for (Map.Entry<Integer, Long> e : map.entrySet()) {
+			VarInts.writeSignedInt(out, e.getKey());
+			VarInts.writeSignedLong(out, e.getValue());
+		}
+	}
+
+	private static int compactMapSize(Map<Integer, Long> map) {
+		int size = VarInts.sizeOfInt(map.size());
+		for (Map.Entry<Integer, Long> e : map.entrySet())
+			size += VarInts.sizeOfSignedInt(e.getKey()) + VarInts.sizeOfSignedLong(e.getValue());
+		return size;
+	}
+
+	// Size of the application type and value written by encodeDataPayload
+	static int dataPayloadSize(Message m) {
+		if (m.getClass() == Transfer.class) {
+			Transfer t = (Transfer) m;
+			if (t.getEpoch() != Transfer.NO_EPOCH)
+				return 1 + 4 + 8 + 8;
+			return (t.getAccount() == 0) ? 1 + 8 : 1 + 4 + 8;
+		} else if (m.getClass() == SnapshotDone.class) {
+			return 1 + 8 + 8 + 4;
+		} else if (m.getClass() == SnapshotReport.class) {
+			SnapshotReport r = (SnapshotReport) m;
+			int entries = r.getAccounts().size() + r.getSent().size() + r.getReceived().size();
+			return 1 + 8 + 4 + 8 + 8 + 4 + 1 + ((r.getParentId() == null) ? 0 : 8) + 3 * 4 + entries * (4 + 8);
+		}
+		return 1 + 8;
+	}
+
+	/**
+	 * Write the application type and value of the message, also used by the
+	 * stream frames of the TCP overlay
+	 */
+	static void encodeDataPayload(Message msg, ByteBuf out) throws Exception {
 		if (msg.getClass() == Transfer.class) {
-			out.writeByte(APP_MONEY_TRANSFER);
-			out.writeLong(((Transfer) msg).getAmount());
+			Transfer t = (Transfer) msg;
+			// The account is only sent if not the default one, the epoch
+			// only if set
+			if (t.getEpoch() != Transfer.NO_EPOCH) {
+				out.writeByte(APP_TAGGED_TRANSFER);
+				out.writeInt(t.getAccount());
+				out.writeLong(t.getEpoch());
+			} else if (t.getAccount() == 0) {
+				out.writeByte(APP_MONEY_TRANSFER);
+			} else {
+				out.writeByte(APP_ACCOUNT_TRANSFER);
+				out.writeInt(t.getAccount());
+			}
+			out.writeLong(t.getAmount());
 		} else if (msg.getClass() == Token.class) {
 			out.writeByte(APP_TOKEN);
 			out.writeLong(((Token) msg).getSnapshotId());
+		} else if (msg.getClass() == SnapshotDone.class) {
+			SnapshotDone d = (SnapshotDone) msg;
+			out.writeByte(APP_SNAPSHOT_DONE);
+			out.writeLong(d.getSnapshotId());
+			out.writeLong(d.getTotal());
+			out.writeInt(d.getBranches());
+		} else if (msg.getClass() == SnapshotReport.class) {
+			SnapshotReport r = (SnapshotReport) msg;
+			out.writeByte(APP_SNAPSHOT_REPORT);
+			out.writeLong(r.getSnapshotId());
+			out.writeInt(r.getBranchId());
+			out.writeLong(r.getBalance());
+			out.writeLong(r.getIncoming());
+			out.writeInt(r.getAggregated());
+			if (r.getParentId() == null) {
+				out.writeByte(0);
+			} else {
+				out.writeByte(1);
+				out.writeLong(r.getParentId());
+			}
+			writeMap(out, r.getAccounts());
+			writeMap(out, r.getSent());
+			writeMap(out, r.getReceived());
 		} else {
 			throw new Exception("Unknown message type");
 		}
 	}
+
+	private static void writeMap(ByteBuf out, Map<Integer, Long> map) {
+		out.writeInt(map.size());
+		for (Map.Entry<Integer, Long> e : map.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeLong(e.getValue());
+		}
+	}
+
+	/**
+	 * Messages batched for a destination, instances are pooled and recycled
+	 * once the frame is written
+	 */
+	private static class Frame {
+
+		private static final Recycler<Frame> RECYCLER = new Recycler<Frame>() {
+
+			@Override
+			protected Frame newObject(Handle handle) {
+				return new Frame(handle);
+			}
+		};
+
+		private final Handle handle;
+
+		final List<Message> messages = new ArrayList<Message>();
+		final List<ChannelPromise> promises = new ArrayList<ChannelPromise>();
+
+		int senderId;
+		boolean hasAck;
+		int ackSeqn;
+
+		// Upper bound of the encoded frame size
+		int size;
+
+		private Frame(Handle handle) {
+			this.handle = handle;
+		}
+
+		static Frame newInstance(int headerSize) {
+			Frame f = RECYCLER.get();
+			f.size = headerSize;
+			return f;
+		}
+
+		void recycle() {
+			messages.clear();
+			promises.clear();
+			hasAck = false;
+			ackSeqn = 0;
+			size = 0;
+			RECYCLER.recycle(this, handle);
+		}
+
+		void add(Message m, ChannelPromise promise, int recordSize) {
+			size += recordSize;
+			senderId = m.senderId;
+
+			// Keep the most recent cumulative ack, retransmitted messages may
+			// carry outdated ones
+			if (m.hasAck && (!hasAck || m.ackSeqn - ackSeqn > 0)) {
+				hasAck = true;
+				ackSeqn = m.ackSeqn;
+			}
+
+			messages.add(m);
+			promises.add(promise);
+		}
+
+		void succeed() {
+			for (ChannelPromise p : promises)
+				p.trySuccess();
+		}
+
+		void fail(Throwable cause) {
+			for (ChannelPromise p : promises)
+				p.tryFailure(cause);
+		}
+	}
 }
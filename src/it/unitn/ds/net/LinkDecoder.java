@@ -4,15 +4,22 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import it.unitn.ds.net.LinkAckEncoder.MessageAck;
 import it.unitn.ds.net.NetOverlay.Message;
+import it.unitn.ds.net.NetOverlay.SnapshotDone;
+import it.unitn.ds.net.NetOverlay.SnapshotReport;
 import it.unitn.ds.net.NetOverlay.Token;
 import it.unitn.ds.net.NetOverlay.Transfer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Decode all incoming messages
+ * Decode all incoming messages, data frames emit one message for each record
+ * Frames of both the fixed-size and the compact codec are accepted
+ * Decoded messages are pooled instances, except the snapshot reports
  */
 @Sharable
 public class LinkDecoder extends MessageToMessageDecoder<DatagramPacket> {
@@ -23,15 +30,25 @@ public class LinkDecoder extends MessageToMessageDecoder<DatagramPacket> {
 		try {
 			// Decode link layer header
 			int msgType = in.readByte();
-			int seqn = in.readInt();
-			int senderId = in.readInt();
+
+			if ((msgType >>> 4) == LinkDataEncoder.COMPACT_VERSION) {
+				decodeCompact(in, msgType & 0xF, out);
+				return;
+			} else if ((msgType >>> 4) != 0) {
+				throw new CorruptedFrameException("Unknown codec version " + (msgType >>> 4));
+			}
 
 			switch (msgType) {
 				case LinkDataEncoder.LNK_DATA :
-					out.add(decodeData(in, seqn, senderId));
+					decodeFrame(in, in.readInt(), false, out);
+					break;
+				case LinkDataEncoder.LNK_DATA_ACK :
+					decodeFrame(in, in.readInt(), true, out);
 					break;
 				case LinkAckEncoder.LNK_ACK :
-					out.add(new MessageAck(seqn, senderId));
+					MessageAck ack = MessageAck.newInstance(in.readInt(), in.readInt());
+					ack.sackBits = in.readLong();
+					out.add(ack);
 					break;
 			}
 		} finally {
@@ -39,20 +56,144 @@ public class LinkDecoder extends MessageToMessageDecoder<DatagramPacket> {
 		}
 	}
 
+	private static void decodeCompact(ByteBuf in, int msgType, List<Object> out) throws Exception {
+		switch (msgType) {
+			case LinkDataEncoder.LNK_DATA :
+			case LinkDataEncoder.LNK_DATA_ACK :
+				int senderId = VarInts.readInt(in);
+				boolean hasAck = msgType == LinkDataEncoder.LNK_DATA_ACK;
+				int ackSeqn = hasAck ? VarInts.readInt(in) : 0;
+				int records = VarInts.readInt(in);
+
+				int seqn = 0;
+				for (int i = 0; i < records; i++) {
+					// Sequence numbers after the first one are relative to the
+					// previous record
+					seqn = (i == 0) ? VarInts.readInt(in) : seqn + 1 + VarInts.readSignedInt(in);
+					Message m = decodeCompactData(in, seqn, senderId);
+
+					if (i == 0 && hasAck) {
+						m.hasAck = true;
+						m.ackSeqn = ackSeqn;
+					}
+
+					out.add(m);
+				}
+				break;
+			case LinkAckEncoder.LNK_ACK :
+				MessageAck ack = MessageAck.newInstance(VarInts.readInt(in), VarInts.readInt(in));
+				ack.sackBits = VarInts.readLong(in);
+				out.add(ack);
+				break;
+		}
+	}
+
+	private static Message decodeCompactData(ByteBuf in, int seqn, int senderId) throws Exception {
+		Message m = null;
+		int type = in.readByte() & 0xFF;
+		boolean resync = (type & LinkDataEncoder.APP_RESYNC) != 0;
+		type &= ~LinkDataEncoder.APP_RESYNC;
+		if (type == LinkDataEncoder.APP_MONEY_TRANSFER)
+			m = Transfer.newInstance(VarInts.readSignedLong(in), 0);
+		else if (type == LinkDataEncoder.APP_ACCOUNT_TRANSFER) {
+			int account = VarInts.readInt(in);
+			m = Transfer.newInstance(VarInts.readSignedLong(in), account);
+		} else if (type == LinkDataEncoder.APP_TAGGED_TRANSFER) {
+			int account = VarInts.readInt(in);
+			long epoch = VarInts.readSignedLong(in);
+			m = Transfer.newInstance(VarInts.readSignedLong(in), account, epoch);
+		} else if (type == LinkDataEncoder.APP_TOKEN)
+			m = Token.newInstance(VarInts.readSignedLong(in));
+		else if (type == LinkDataEncoder.APP_SNAPSHOT_DONE)
+			m = SnapshotDone.newInstance(VarInts.readSignedLong(in), VarInts.readSignedLong(in), VarInts.readInt(in));
+		else if (type == LinkDataEncoder.APP_SNAPSHOT_REPORT) {
+			long snapshotId = VarInts.readSignedLong(in);
+			int branchId = VarInts.readSignedInt(in);
+			long balance = VarInts.readSignedLong(in);
+			long incoming = VarInts.readSignedLong(in);
+			int aggregated = VarInts.readInt(in);
+			Long parentId = (in.readByte() == 0) ? null : VarInts.readSignedLong(in);
+			m = new SnapshotReport(snapshotId, branchId, balance, incoming, aggregated, parentId, readCompactMap(in), readCompactMap(in), readCompactMap(in));
+		}
+
+		if (m == null)
+			throw new Exception("Unknown message type");
+
+		m.seqn = seqn;
+		m.senderId = senderId;
+		m.resync = resync;
+
+		return m;
+	}
+
+	private static void decodeFrame(ByteBuf in, int senderId, boolean hasAck, List<Object> out) throws Exception {
+		int ackSeqn = hasAck ? in.readInt() : 0;
+		int records = in.readUnsignedShort();
+
+		for (int i = 0; i < records; i++) {
+			Message m = decodeData(in, in.readInt(), senderId);
+
+			// The piggybacked ack is processed with the first record
+			if (i == 0 && hasAck) {
+				m.hasAck = true;
+				m.ackSeqn = ackSeqn;
+			}
+
+			out.add(m);
+		}
+	}
+
 	public static Message decodeData(ByteBuf in, int seqn, int senderId) throws Exception {
 		Message m = null;
-		byte type = in.readByte();
+		int type = in.readByte() & 0xFF;
+		boolean resync = (type & LinkDataEncoder.APP_RESYNC) != 0;
+		type &= ~LinkDataEncoder.APP_RESYNC;
 		if (type == LinkDataEncoder.APP_MONEY_TRANSFER)
-			m = new Transfer(in.readLong());
-		else if (type == LinkDataEncoder.APP_TOKEN)
-			m = new Token(in.readLong());
+			m = Transfer.newInstance(in.readLong(), 0);
+		else if (type == LinkDataEncoder.APP_ACCOUNT_TRANSFER) {
+			int account = in.readInt();
+			m = Transfer.newInstance(in.readLong(), account);
+		} else if (type == LinkDataEncoder.APP_TAGGED_TRANSFER) {
+			int account = in.readInt();
+			long epoch = in.readLong();
+			m = Transfer.newInstance(in.readLong(), account, epoch);
+		} else if (type == LinkDataEncoder.APP_TOKEN)
+			m = Token.newInstance(in.readLong());
+		else if (type == LinkDataEncoder.APP_SNAPSHOT_DONE)
+			m = SnapshotDone.newInstance(in.readLong(), in.readLong(), in.readInt());
+		else if (type == LinkDataEncoder.APP_SNAPSHOT_REPORT) {
+			long snapshotId = in.readLong();
+			int branchId = in.readInt();
+			long balance = in.readLong();
+			long incoming = in.readLong();
+			int aggregated = in.readInt();
+			Long parentId = (in.readByte() == 0) ? null : in.readLong();
+			m = new SnapshotReport(snapshotId, branchId, balance, incoming, aggregated, parentId, readMap(in), readMap(in), readMap(in));
+		}
 
 		if (m == null)
 			throw new Exception("Unknown message type");
 
 		m.seqn = seqn;
 		m.senderId = senderId;
+		m.resync = resync;
 
 		return m;
 	}
+
+	private static Map<Integer, Long> readMap(ByteBuf in) {
+		int size = in.readInt();
+		Map<Integer, Long> map = new HashMap<Integer, Long>();
+		for (int i = 0; i < size; i++)
+			map.put(in.readInt(), in.readLong());
+		return map;
+	}
+
+	private static Map<Integer, Long> readCompactMap(ByteBuf in) {
+		int size = VarInts.readInt(in);
+		Map<Integer, Long> map = new HashMap<Integer, Long>();
+		for (int i = 0; i < size; i++)
+			map.put(VarInts.readSignedInt(in), VarInts.readSignedLong(in));
+		return map;
+	}
 }
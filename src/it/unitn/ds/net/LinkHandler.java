@@ -1,100 +1,176 @@
 package it.unitn.ds.net;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelDuplexHandler;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
 import it.unitn.ds.net.LinkAckEncoder.MessageAck;
 import it.unitn.ds.net.NetOverlay.Message;
-import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Manage link layer reliability for parallel message reception and but only for
- * serial message transmission
- * It's marked as sharable since the same instance is used in all UDP stacks
- * used by the node
+ * Manage link layer reliability for parallel message reception and pipelined
+ * message transmission: every destination has a sliding window of sequenced
+ * messages that can be in flight at the same time
+ * Data and ACK messages are sent as addressed datagrams through the channel
+ * bound by the node. ACKs are cumulative, delayed for a short time to be
+ * coalesced and piggybacked on data messages sent in the reverse direction
+ * Messages received out of order are kept in a bounded reorder buffer and
+ * released to the upper layer in sequence, preserving FIFO channels. They are
+ * reported to the sender with selective ACKs. Without ordered delivery they
+ * are passed up as soon as received, only duplicates are filtered
+ * A destination not answering after the maximum number of retransmissions
+ * fails the messages of its link, the next message sent resynchronizes the
+ * receiver past the abandoned sequence numbers
  */
 @Sharable
 public class LinkHandler extends ChannelDuplexHandler {
 
-	// Acknowledgement timeout in ms
-	private static final int ACK_TIMEOUT = 1000;
+	// Retransmission timeout in ms used before any RTT measurement
+	private static final int INITIAL_RTO = 1000;
+
+	// Bounds of the retransmission timeout in ms
+	private static final int MIN_RTO = 20;
+	private static final int MAX_RTO = 10000;
+
+	// Resolution of the retransmission timer in ms
+	private static final int TIMER_TICK = 5;
+
+	// Maximum delay of an acknowledgement in ms
+	private static final int ACK_DELAY = 1;
+
+	// Maximum number of messages acknowledged by a single delayed ACK
+	private static final int MAX_DELAYED_ACKS = 8;
+
+	// Number of messages beyond the next expected one that can be buffered for
+	// each sender, equal to the bits of the selective ACK bitmap
+	public static final int REORDER_BUFFER_SIZE = 64;
+
+	// Default maximum number of unacknowledged messages for each destination
+	public static final int DEFAULT_WINDOW_SIZE = 32;
+
+	// Default number of retransmissions after which the link is reset
+	public static final int DEFAULT_MAX_RETRIES = 10;
 
-	private final Bootstrap ackBoot = new Bootstrap();
 	private final int localBranch;
-	private final Map<Integer, InetSocketAddress> branches;
+	private final int windowSize;
+	private final int maxRetries;
 
-	private final ScheduledExecutorService retransmissionTimer = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+	// Deliver the messages of each sender in sequence
+	private final boolean ordered;
 
-		@Override
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(r, "Retransmission Timer");
-			t.setDaemon(true);
-			return t;
-		}
-	});
+	// Timer wheel of the handlers not given one, shared by the process: created
+	// for the first handler and stopped once the last one is stopped
+	private static Timer processTimer;
+	private static int processTimerUsers = 0;
 
-	private AtomicInteger nextSeq = new AtomicInteger(1);
-	private Map<Integer, Integer> branchesSeqn = new ConcurrentHashMap<Integer, Integer>();
+	// Single timer wheel for the retransmissions of all in-flight messages,
+	// the process timer is released when the handler is stopped
+	private final Timer retransmissionTimer;
+	private final boolean usesProcessTimer;
+	private boolean stopped = false;
 
-	// Pending msg is assumed to be set for a serial transmission on the link
-	// (not working with parallel data transmission)
-	private Message pendingMsg;
-	private ScheduledFuture<?> retransmissionTask;
+	// Outgoing links state
+	private final Map<Integer, SendWindow> sendWindows = new ConcurrentHashMap<Integer, SendWindow>();
 
-	public LinkHandler(int localBranch, Map<Integer, InetSocketAddress> branches) {
-		this.localBranch = localBranch;
-		this.branches = branches;
-		ackBoot.channel(NioDatagramChannel.class).handler(new LinkAckEncoder());
+	// Incoming links state
+	private final Map<Integer, ReceiveWindow> receiveWindows = new ConcurrentHashMap<Integer, ReceiveWindow>();
+
+	// Incoming links statistics
+	private final LongAdder duplicateMessages = new LongAdder();
+	private final LongAdder reorderedMessages = new LongAdder();
+	private final LongAdder droppedMessages = new LongAdder();
+
+	public LinkHandler(int localBranch) {
+		this(localBranch, DEFAULT_WINDOW_SIZE);
 	}
 
-	@Override
-	public void channelActive(ChannelHandlerContext ctx) throws Exception {
-		// Send ACK messages using the channel event loop
-		if (ackBoot.group() == null)
-			ackBoot.group(ctx.channel().eventLoop());
+	public LinkHandler(int localBranch, int windowSize) {
+		this(localBranch, windowSize, null);
 	}
 
-	@Override
-	public void write(final ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-		if (((Message) msg).seqn == 0)
-			((Message) msg).seqn = nextSeq();
+	/**
+	 * @param timer
+	 *            Timer wheel shared with other handlers, if null the timer of
+	 *            the process is used
+	 */
+	public LinkHandler(int localBranch, int windowSize, Timer timer) {
+		this(localBranch, windowSize, timer, true);
+	}
 
-		pendingMsg = (Message) msg;
+	/**
+	 * @param ordered
+	 *            If false messages received out of order are delivered
+	 *            immediately and channels are not FIFO
+	 */
+	public LinkHandler(int localBranch, int windowSize, Timer timer, boolean ordered) {
+		this(localBranch, windowSize, timer, ordered, DEFAULT_MAX_RETRIES);
+	}
 
-		super.write(ctx, msg, promise);
+	/**
+	 * @param maxRetries
+	 *            Retransmissions of a message after which the destination is
+	 *            considered unreachable and the messages of its link failed
+	 */
+	public LinkHandler(int localBranch, int windowSize, Timer timer, boolean ordered, int maxRetries) {
+		if (windowSize < 1)
+			throw new IllegalArgumentException("Invalid send window size");
+		if (maxRetries < 1)
+			throw new IllegalArgumentException("Invalid maximum number of retransmissions");
 
-		// Start retransmission task
-		retransmissionTask = retransmissionTimer.scheduleAtFixedRate(() -> {
-			try {
-				ctx.writeAndFlush(msg);
-			} catch (Exception e) {
-				// Exceptionally complete for all unhandled exceptions
-				pendingMsg.deliveryFut.completeExceptionally(e);
-			}
-		}, ACK_TIMEOUT, ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+		this.localBranch = localBranch;
+		this.windowSize = windowSize;
+		this.maxRetries = maxRetries;
+		this.ordered = ordered;
+		this.usesProcessTimer = (timer == null);
+		this.retransmissionTimer = usesProcessTimer ? acquireProcessTimer() : timer;
 	}
 
-	private int nextSeq() {
-		// Prevent overflow
-		while (nextSeq.get() == Integer.MAX_VALUE)
-			if (nextSeq.compareAndSet(Integer.MAX_VALUE, 0))
-				break;
+	private static synchronized Timer acquireProcessTimer() {
+		if (processTimerUsers++ == 0)
+			processTimer = newRetransmissionTimer();
+		return processTimer;
+	}
+
+	private static synchronized void releaseProcessTimer() {
+		if (--processTimerUsers == 0) {
+			processTimer.stop();
+			processTimer = null;
+		}
+	}
+
+	/**
+	 * @return A new timer wheel suitable for retransmissions
+	 */
+	public static Timer newRetransmissionTimer() {
+		return new HashedWheelTimer(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Retransmission Timer");
+				t.setDaemon(true);
+				return t;
+			}
+		}, TIMER_TICK, TimeUnit.MILLISECONDS);
+	}
 
-		return nextSeq.getAndIncrement();
+	@Override
+	public void write(final ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		Message m = (Message) msg;
+		sendWindows.computeIfAbsent(m.destId, SendWindow::new).send(ctx, m, promise);
 	}
 
 	@Override
@@ -108,48 +184,451 @@ public class LinkHandler extends ChannelDuplexHandler {
 
 		msg.destId = localBranch;
 
-		sendAck(msg);
+		// Process acknowledgement piggybacked by the sender
+		if (msg.hasAck)
+			handleAck(MessageAck.newInstance(msg.ackSeqn, msg.senderId));
 
-		// Send to upper layer only if never seen before
-		if (branchesSeqn.getOrDefault(msg.senderId, -1) < msg.seqn) {
-			branchesSeqn.put(msg.senderId, msg.seqn);
-			ctx.fireChannelRead(msg);
-		}
+		// Messages are sent to upper layer in sequence
+		receiveWindows.computeIfAbsent(msg.senderId, ReceiveWindow::new).receive(ctx, msg);
 	}
 
-	private void sendAck(Message msg) {
-		InetSocketAddress branchAddr = branches.get(msg.senderId);
-		ackBoot.connect(branchAddr).addListener(new ChannelFutureListener() {
+	private void handleAck(MessageAck ack) {
+		SendWindow w = sendWindows.get(ack.senderId);
 
-			@Override
-			public void operationComplete(ChannelFuture future) throws Exception {
-				future.channel().writeAndFlush(new MessageAck(msg.seqn, localBranch)).addListener(new ChannelFutureListener() {
+		// Cumulative ACKs may be duplicated or outdated, they are ignored if
+		// not acknowledging any new message
+		if (w != null)
+			w.acknowledge(ack);
 
-					@Override
-					public void operationComplete(ChannelFuture future) throws Exception {
-						future.channel().close();
-					}
-				});
-			}
-		});
+		ack.recycle();
 	}
 
-	private void handleAck(MessageAck ack) {
-		if (pendingMsg.isMatchingAck(ack)) {
-			retransmissionTask.cancel(false);
-			pendingMsg.deliveryFut.complete(pendingMsg);
-		} else {
-			System.err.println("Unexpected ACK " + ack + " dropped");
-		}
+	/**
+	 * @return The number of received messages already delivered or buffered
+	 */
+	public long getDuplicateMessages() {
+		return duplicateMessages.sum();
+	}
+
+	/**
+	 * @return The number of messages received out of order and buffered
+	 */
+	public long getReorderedMessages() {
+		return reorderedMessages.sum();
+	}
+
+	/**
+	 * @return The number of messages dropped because too far ahead of the
+	 *         next expected one
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.sum();
+	}
+
+	/**
+	 * Cancel the pending retransmissions and release the process timer, called
+	 * once the channels of the handler are closed
+	 */
+	public synchronized void stop() {
+		if (stopped)
+			return;
+		stopped = true;
+
+		for (SendWindow w : sendWindows.values())
+			w.cancelRetransmissions();
+
+		if (usesProcessTimer)
+			releaseProcessTimer();
 	}
 
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
 		if (cause.getClass() == PortUnreachableException.class) {
-			System.out.println("Delivery of message #" + pendingMsg.seqn + " to branch " + pendingMsg.destId + " failed: (" + branches.get(pendingMsg.destId) + ")" + " unreachable!");
+			System.out.println("Message delivery failed: destination unreachable!");
 			// Retried anyway once timeout occurs
 		} else {
-			pendingMsg.deliveryFut.completeExceptionally(cause);
+			cause.printStackTrace();
+		}
+	}
+
+	/**
+	 * Message transmitted on a link and waiting for acknowledgement
+	 */
+	private static class InFlightMessage {
+
+		final ChannelHandlerContext ctx;
+		final Message msg;
+		final long sentTime = System.nanoTime();
+
+		int retransmissions = 0;
+		boolean acked = false;
+		boolean selectivelyAcked = false;
+		Timeout retransmissionTask;
+
+		InFlightMessage(ChannelHandlerContext ctx, Message msg) {
+			this.ctx = ctx;
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Message waiting for a free slot in the send window
+	 */
+	private static class PendingWrite {
+
+		final ChannelHandlerContext ctx;
+		final Message msg;
+		final ChannelPromise promise;
+
+		PendingWrite(ChannelHandlerContext ctx, Message msg, ChannelPromise promise) {
+			this.ctx = ctx;
+			this.msg = msg;
+			this.promise = promise;
+		}
+	}
+
+	/**
+	 * Sliding window for the outgoing link towards a destination: at most
+	 * windowSize messages are unacknowledged at the same time, the others are
+	 * queued in transmission order
+	 * The retransmission timeout is adapted to the link round trip time
+	 * (Jacobson/Karels estimation) and doubled at every retransmission of the
+	 * oldest unacknowledged message.
+	 * After maxRetries retransmissions of a message the link is reset: the
+	 * pending messages are failed and the next one is flagged to resynchronize
+	 * the receiver, so a destination started late or restarting receives the
+	 * following messages once it answers
+	 */
+	private class SendWindow {
+
+		private final int destId;
+
+		// Messages in flight ordered by sequence number
+		private final Queue<InFlightMessage> inFlight = new ArrayDeque<InFlightMessage>();
+		private final Queue<PendingWrite> backlog = new ArrayDeque<PendingWrite>();
+
+		private int nextSeq = 1;
+
+		// Smoothed RTT and RTT variation in ms, negative until the first
+		// measurement
+		private double srtt = -1;
+		private double rttvar;
+		private long rto = INITIAL_RTO;
+
+		// Set once the link is reset until the next message is transmitted
+		private boolean resync = false;
+
+		SendWindow(int destId) {
+			this.destId = destId;
+		}
+
+		synchronized void send(ChannelHandlerContext ctx, Message msg, ChannelPromise promise) {
+			if (inFlight.size() < windowSize && backlog.isEmpty())
+				transmit(ctx, msg, promise);
+			else
+				backlog.add(new PendingWrite(ctx, msg, promise));
+		}
+
+		private void transmit(ChannelHandlerContext ctx, Message msg, ChannelPromise promise) {
+			msg.seqn = nextSeq++;
+
+			// The sequence numbers before this one were abandoned
+			msg.resync = resync;
+			resync = false;
+
+			// Piggyback the pending acknowledgement for the destination, if any
+			ReceiveWindow reverse = receiveWindows.get(msg.destId);
+			msg.hasAck = reverse != null && reverse.piggybackAck(msg);
+
+			InFlightMessage m = new InFlightMessage(ctx, msg);
+			m.retransmissionTask = retransmissionTimer.newTimeout((t) -> retransmit(m), rto, TimeUnit.MILLISECONDS);
+			inFlight.add(m);
+
+			// Flushed by the encoder once the frame for the destination is
+			// complete
+			ctx.write(msg, promise);
+		}
+
+		private void retransmit(InFlightMessage m) {
+			List<Message> failed;
+			synchronized (this) {
+				// Acknowledged in the meantime
+				if (m.acked)
+					return;
+
+				// Already buffered by the receiver, wait for the cumulative ACK
+				if (m.selectivelyAcked) {
+					m.retransmissionTask = retransmissionTimer.newTimeout((t) -> retransmit(m), rto, TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				if (m.retransmissions < maxRetries) {
+					m.retransmissions++;
+
+					// Exponential backoff once per timeout event: the messages
+					// batched in a lost frame expire together, only the oldest
+					// unacknowledged one doubles the timeout
+					if (m == inFlight.peek())
+						rto = Math.min(rto * 2, MAX_RTO);
+
+					m.ctx.writeAndFlush(m.msg);
+					m.retransmissionTask = retransmissionTimer.newTimeout((t) -> retransmit(m), rto, TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				failed = reset();
+			}
+
+			// Complete outside the lock since completion handlers may send
+			// new messages
+			Exception e = new PortUnreachableException("Branch " + destId + " unreachable after " + maxRetries + " retransmissions");
+			for (Message msg : failed)
+				msg.deliveryFut.completeExceptionally(e);
+		}
+
+		/**
+		 * Drop the pending messages of the link, the destination may have
+		 * received some of them before becoming unresponsive
+		 */
+		private List<Message> reset() {
+			List<Message> failed = new ArrayList<Message>();
+			for (InFlightMessage m : inFlight) {
+				m.retransmissionTask.cancel();
+				failed.add(m.msg);
+			}
+			inFlight.clear();
+
+			for (PendingWrite w : backlog) {
+				w.promise.tryFailure(new PortUnreachableException("Branch " + destId + " unreachable"));
+				failed.add(w.msg);
+			}
+			backlog.clear();
+
+			resync = true;
+			return failed;
+		}
+
+		/**
+		 * Acknowledge all the in-flight messages up to the ACK sequence number
+		 */
+		void acknowledge(MessageAck ack) {
+			ArrayDeque<InFlightMessage> acked = new ArrayDeque<InFlightMessage>();
+			synchronized (this) {
+				while (!inFlight.isEmpty() && inFlight.peek().msg.isMatchingAck(ack)) {
+					InFlightMessage m = inFlight.poll();
+					m.acked = true;
+					m.retransmissionTask.cancel();
+					acked.add(m);
+				}
+
+				// Messages buffered out of order by the receiver are not
+				// retransmitted
+				if (ack.sackBits != 0)
+					for (InFlightMessage m : inFlight) {
+						int offset = m.msg.seqn - ack.seqn - 2;
+						if (offset >= 0 && offset < REORDER_BUFFER_SIZE && (ack.sackBits & (1L << offset)) != 0)
+							m.selectivelyAcked = true;
+					}
+
+				// Karn's algorithm: measure RTT only on messages never
+				// retransmitted, the most recent one is the least affected by
+				// delayed ACKs
+				InFlightMessage last = acked.peekLast();
+				if (last != null && last.retransmissions == 0)
+					updateRto((System.nanoTime() - last.sentTime) / 1e6);
+
+				// Move queued messages into the window
+				while (inFlight.size() < windowSize && !backlog.isEmpty()) {
+					PendingWrite w = backlog.poll();
+					transmit(w.ctx, w.msg, w.promise);
+				}
+			}
+
+			// Complete outside the lock since completion handlers may send
+			// new messages
+			for (InFlightMessage m : acked)
+				m.msg.deliveryFut.complete(m.msg);
+		}
+
+		synchronized void cancelRetransmissions() {
+			for (InFlightMessage m : inFlight)
+				m.retransmissionTask.cancel();
+		}
+
+		private void updateRto(double rtt) {
+			if (srtt < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2;
+			} else {
+				rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+				srtt = 0.875 * srtt + 0.125 * rtt;
+			}
+
+			rto = Math.max(MIN_RTO, Math.min(MAX_RTO, (long) Math.ceil(srtt + 4 * rttvar)));
+		}
+	}
+
+	/**
+	 * State of the incoming link from a sender: next expected sequence number,
+	 * delivered messages not acknowledged yet and messages received ahead of
+	 * the expected one
+	 */
+	private class ReceiveWindow {
+
+		private final int senderId;
+
+		private int expected = 1;
+		private int unacked = 0;
+		private ScheduledFuture<?> delayedAck;
+
+		// Messages received out of order, indexed by sequence number modulo
+		// the buffer size. Bit i of the bitmap is set if the message expected
+		// + 1 + i is in the buffer
+		private final Message[] reorderBuffer = new Message[REORDER_BUFFER_SIZE];
+		private long received = 0;
+
+		ReceiveWindow(int senderId) {
+			this.senderId = senderId;
+		}
+
+		/**
+		 * Pass the message to the upper layer if it is the next in sequence,
+		 * followed by the buffered messages that are now in sequence
+		 */
+		synchronized void receive(ChannelHandlerContext ctx, Message msg) {
+			// Sequence numbers are compared with serial number arithmetic to
+			// tolerate overflows
+			int distance = msg.seqn - expected;
+
+			if (distance == 0) {
+				deliverInSequence(ctx, msg);
+			} else if (distance < 0) {
+				// Already delivered, the previous ACK was lost
+				duplicateMessages.increment();
+				msg.release();
+				sendAck(ctx);
+			} else if (distance <= REORDER_BUFFER_SIZE) {
+				long bit = 1L << (distance - 1);
+				if ((received & bit) != 0) {
+					duplicateMessages.increment();
+					msg.release();
+					sendAck(ctx);
+				} else if (msg.resync) {
+					skipTo(msg.seqn);
+					deliverInSequence(ctx, msg);
+				} else {
+					received |= bit;
+					reorderedMessages.increment();
+					if (ordered)
+						reorderBuffer[slot(msg.seqn)] = msg;
+					else
+						ctx.fireChannelRead(msg);
+
+					// Report the gap immediately
+					sendAck(ctx);
+				}
+			} else if (msg.resync) {
+				skipTo(msg.seqn);
+				deliverInSequence(ctx, msg);
+			} else {
+				// Too far ahead, it will be retransmitted
+				droppedMessages.increment();
+				msg.release();
+			}
+		}
+
+		private void deliverInSequence(ChannelHandlerContext ctx, Message msg) {
+			deliver(ctx, msg);
+
+			// Release buffered messages that are now in sequence, without
+			// ordering they were already delivered
+			while ((received & 1) != 0) {
+				int slot = slot(expected);
+				Message next = reorderBuffer[slot];
+				reorderBuffer[slot] = null;
+				received >>>= 1;
+				if (ordered)
+					deliver(ctx, next);
+				else
+					advance();
+			}
+			received >>>= 1;
+
+			// Delay the acknowledgement to coalesce it with the following
+			// ones or to piggyback it on a reverse data message
+			if (unacked >= MAX_DELAYED_ACKS)
+				sendAck(ctx);
+			else if (delayedAck == null)
+				delayedAck = ctx.executor().schedule(() -> sendDelayedAck(ctx), ACK_DELAY, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Move the window to the given sequence number, the messages before it
+		 * were abandoned by the sender and the buffered ones are dropped
+		 */
+		private void skipTo(int seqn) {
+			int steps = Math.min(seqn - expected, REORDER_BUFFER_SIZE + 1);
+			for (int i = 0; i < steps; i++) {
+				expected++;
+				if ((received & 1) != 0) {
+					int slot = slot(expected);
+					if (reorderBuffer[slot] != null) {
+						reorderBuffer[slot].release();
+						reorderBuffer[slot] = null;
+					}
+				}
+				received >>>= 1;
+			}
+			expected = seqn;
+		}
+
+		private void deliver(ChannelHandlerContext ctx, Message msg) {
+			advance();
+			ctx.fireChannelRead(msg);
+		}
+
+		private void advance() {
+			expected++;
+			unacked++;
+		}
+
+		private int slot(int seqn) {
+			return Math.floorMod(seqn, REORDER_BUFFER_SIZE);
+		}
+
+		private synchronized void sendDelayedAck(ChannelHandlerContext ctx) {
+			delayedAck = null;
+			if (unacked > 0)
+				sendAck(ctx);
+		}
+
+		private void sendAck(ChannelHandlerContext ctx) {
+			cancelDelayedAck();
+			MessageAck ack = MessageAck.newInstance(expected - 1, localBranch, senderId);
+			ack.sackBits = received;
+			ctx.writeAndFlush(ack);
+		}
+
+		/**
+		 * Attach the pending acknowledgement to an outgoing data message
+		 *
+		 * @return true if an acknowledgement was pending
+		 */
+		synchronized boolean piggybackAck(Message msg) {
+			if (unacked == 0)
+				return false;
+
+			cancelDelayedAck();
+			msg.ackSeqn = expected - 1;
+			return true;
+		}
+
+		private void cancelDelayedAck() {
+			unacked = 0;
+			if (delayedAck != null) {
+				delayedAck.cancel(false);
+				delayedAck = null;
+			}
 		}
 	}
 }
@@ -0,0 +1,134 @@
+package it.unitn.ds.net;
+
+import it.unitn.ds.net.NetOverlay.Message;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free inbox for incoming messages. Any number of network threads
+ * can add messages while a single consumer drains them in batches.
+ * The consumer is notified by running a listener on its executor once for
+ * every burst of messages
+ */
+class MessageInbox {
+
+	// Default number of slots in the ring buffer
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final AtomicReferenceArray<Message> ring;
+	private final int mask;
+
+	// Next slot to be claimed by producers
+	private final AtomicLong tail = new AtomicLong();
+
+	// Next slot to be read by the consumer, only written by the consumer
+	private final AtomicLong head = new AtomicLong();
+
+	// Set when the listener has been submitted and not yet started draining
+	private final AtomicBoolean signalled = new AtomicBoolean();
+
+	private volatile Runnable listener;
+	private volatile Executor executor;
+
+	public MessageInbox() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of buffered messages, rounded up to a power of two
+	 */
+	public MessageInbox(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.ring = new AtomicReferenceArray<Message>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Register the task run on the given executor when new messages are
+	 * available. The task is expected to drain the inbox.
+	 */
+	public void setListener(Runnable listener, Executor executor) {
+		this.executor = executor;
+		this.listener = listener;
+
+		// Messages received before the registration
+		if (!isEmpty())
+			signal();
+	}
+
+	/**
+	 * Add a message to the inbox, waits for the consumer if the inbox is full
+	 * so that the reception order is never altered
+	 */
+	public void add(Message m) {
+		while (!offer(m))
+			Thread.yield();
+	}
+
+	/**
+	 * Add a message to the inbox if not full
+	 * 
+	 * @return true if the message was added
+	 */
+	public boolean offer(Message m) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head.get() >= ring.length())
+				return false;
+		} while (!tail.compareAndSet(t, t + 1));
+
+		// Volatile store: it must not be reordered with the load of signalled,
+		// otherwise a drain clearing the flag concurrently could miss the
+		// message while this producer sees the listener still signalled
+		ring.set((int) t & mask, m);
+
+		signal();
+		return true;
+	}
+
+	private void signal() {
+		Runnable l = listener;
+		if (l == null || signalled.get() || !signalled.compareAndSet(false, true))
+			return;
+
+		executor.execute(l);
+	}
+
+	/**
+	 * Pass up to maxMessages messages to the consumer, in reception order. Must
+	 * be called by a single thread at a time.
+	 *
+	 * @return The number of messages consumed
+	 */
+	public int drain(int maxMessages, Consumer<Message> consumer) {
+		// Messages added from now on trigger a new notification
+		signalled.set(false);
+
+		long h = head.get();
+		int n = 0;
+		while (n < maxMessages) {
+			int idx = (int) h & mask;
+			Message m = ring.get(idx);
+
+			// Empty, or the next slot is claimed but not yet published
+			if (m == null)
+				break;
+
+			ring.lazySet(idx, null);
+			head.lazySet(++h);
+			n++;
+
+			consumer.accept(m);
+		}
+		return n;
+	}
+
+	public boolean isEmpty() {
+		return ring.get((int) head.get() & mask) == null;
+	}
+}
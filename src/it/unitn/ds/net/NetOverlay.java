@@ -1,15 +1,61 @@
 package it.unitn.ds.net;
 
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
 import it.unitn.ds.net.LinkAckEncoder.MessageAck;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
  * Provides the network overlay layer for the distributed banking system
  */
 public interface NetOverlay {
 
+	/**
+	 * Create an overlay for the given transport with the default settings
+	 * 
+	 * @param transport
+	 *            One of udp, tcp or inprocess
+	 */
+	static NetOverlay newInstance(String transport) {
+		switch (transport.toLowerCase()) {
+			case "udp" :
+				return new UDPNetOverlay();
+			case "tcp" :
+				return new TCPNetOverlay();
+			case "inprocess" :
+				return new InProcessNetOverlay();
+			default :
+				throw new IllegalArgumentException("Unknown transport " + transport);
+		}
+	}
+
+	/**
+	 * Create an overlay for the given transport using the threads of the
+	 * runtime
+	 * 
+	 * @param transport
+	 *            One of udp, tcp or inprocess
+	 */
+	static NetOverlay newInstance(String transport, SharedRuntime runtime) {
+		switch (transport.toLowerCase()) {
+			case "udp" :
+				return new UDPNetOverlay(runtime);
+			case "tcp" :
+				return new TCPNetOverlay(runtime);
+			case "inprocess" :
+				return new InProcessNetOverlay();
+			default :
+				throw new IllegalArgumentException("Unknown transport " + transport);
+		}
+	}
+
 	/**
 	 * Start the local server by using the given branchId and load all the other
 	 * branches addresses. The returned future is completed once the server is
@@ -31,16 +77,42 @@ public interface NetOverlay {
 	 * Send the given message to the specified remote branch.
 	 * 
 	 * @return A completable future that is aynchronously set as completed when
-	 *         the message is successfully delivered.
+	 *         the message is successfully delivered. An exceptionally
+	 *         completed future only means that the delivery could not be
+	 *         confirmed: the destination may have received the message before
+	 *         becoming unreachable.
 	 * 
 	 * @throws InterruptedException
 	 */
 	<T extends Message> CompletableFuture<T> sendMessage(int remoteBranch, T m);
 
 	/**
-	 * @return The next incoming message, if any. Null if there is no message.
+	 * Send a copy of the given message to each of the remote branches. The
+	 * given message is only used as a template and is not sent itself.
+	 * 
+	 * @return The delivery future of the copy sent to each branch
 	 */
-	CompletableFuture<Message> receiveMessage();
+	default Map<Integer, CompletableFuture<Message>> broadcastMessage(Collection<Integer> remoteBranches, Message m) {
+		Map<Integer, CompletableFuture<Message>> futs = new HashMap<Integer, CompletableFuture<Message>>(remoteBranches.size() * 2);
+		for (int branch : remoteBranches)
+			futs.put(branch, sendMessage(branch, m.copy()));
+		return futs;
+	}
+
+	/**
+	 * Register the task run on the given executor when new incoming messages
+	 * are available. The task is run once for each burst of messages and is
+	 * expected to consume them with {@link #drainMessages(int, Consumer)}
+	 */
+	void setMessageListener(Runnable listener, Executor executor);
+
+	/**
+	 * Pass up to maxMessages incoming messages to the consumer, in reception
+	 * order. Must not be called concurrently.
+	 * 
+	 * @return The number of consumed messages
+	 */
+	int drainMessages(int maxMessages, Consumer<Message> consumer);
 
 	/**
 	 * Generic overlay message
@@ -52,17 +124,50 @@ public interface NetOverlay {
 		int destId;
 		CompletableFuture<Message> deliveryFut;
 
+		// Cumulative acknowledgement piggybacked by the link layer
+		boolean hasAck;
+		int ackSeqn;
+
+		// Set by the link layer on the first message sent after a reset
+		boolean resync;
+
 		public int getSenderId() {
 			return senderId;
 		}
 
+		/**
+		 * @return A new unsent message with the same application content
+		 */
+		abstract Message copy();
+
 		@Override
 		public String toString() {
 			return "Message [seqn=" + seqn + ", senderId=" + senderId + "]";
 		}
 
+		/**
+		 * @return true if the given cumulative ack acknowledges this message
+		 */
 		public boolean isMatchingAck(MessageAck ack) {
-			return ack.senderId == destId && ack.seqn == seqn;
+			return ack.senderId == destId && seqn - ack.seqn <= 0;
+		}
+
+		/**
+		 * Release a received message once processed, pooled instances are
+		 * returned to their pool and must not be used afterwards
+		 */
+		public void release() {
+			// Messages created by the application are garbage collected
+		}
+
+		void reset() {
+			seqn = 0;
+			senderId = 0;
+			destId = 0;
+			deliveryFut = null;
+			hasAck = false;
+			ackSeqn = 0;
+			resync = false;
 		}
 	}
 
@@ -71,19 +176,95 @@ public interface NetOverlay {
 	 */
 	public class Transfer extends Message {
 
-		private final long amount;
+		private static final Recycler<Transfer> RECYCLER = new Recycler<Transfer>() {
+
+			@Override
+			protected Transfer newObject(Handle handle) {
+				return new Transfer(handle);
+			}
+		};
+
+		/**
+		 * Epoch of transfers not tagged with a snapshot
+		 */
+		public static final long NO_EPOCH = -1;
+
+		private final Handle handle;
+		private long amount;
+
+		// Destination account in the receiving branch
+		private int account;
+
+		// Last snapshot recorded by the sender, piggybacked by snapshot
+		// algorithms without markers
+		private long epoch = NO_EPOCH;
 
 		public Transfer(long amount) {
+			this(amount, 0);
+		}
+
+		public Transfer(long amount, int account) {
+			this(amount, account, NO_EPOCH);
+		}
+
+		public Transfer(long amount, int account, long epoch) {
+			this.handle = null;
 			this.amount = amount;
+			this.account = account;
+			this.epoch = epoch;
+		}
+
+		private Transfer(Handle handle) {
+			this.handle = handle;
+		}
+
+		/**
+		 * @return A pooled instance, to be released once processed
+		 */
+		static Transfer newInstance(long amount, int account) {
+			return newInstance(amount, account, NO_EPOCH);
+		}
+
+		static Transfer newInstance(long amount, int account, long epoch) {
+			Transfer t = RECYCLER.get();
+			t.amount = amount;
+			t.account = account;
+			t.epoch = epoch;
+			return t;
+		}
+
+		@Override
+		Transfer copy() {
+			return new Transfer(amount, account, epoch);
+		}
+
+		@Override
+		public void release() {
+			if (handle == null)
+				return;
+
+			reset();
+			amount = 0;
+			account = 0;
+			epoch = NO_EPOCH;
+			RECYCLER.recycle(this, handle);
 		}
 
 		public long getAmount() {
 			return amount;
 		}
 
+		public int getAccount() {
+			return account;
+		}
+
+		public long getEpoch() {
+			return epoch;
+		}
+
 		@Override
 		public String toString() {
-			return "Transfer [amount=" + amount + ", seqn=" + seqn + ", senderId=" + senderId + "]";
+			return "Transfer [amount=" + amount + ", account=" + account + ", epoch=" + epoch + ", seqn=" + seqn + ", senderId=" + senderId + "]";
 		}
 	}
 
@@ -92,12 +273,50 @@ public interface NetOverlay {
 	 */
 	public class Token extends Message {
 
-		private final long snapshotId;
+		private static final Recycler<Token> RECYCLER = new Recycler<Token>() {
+
+			@Override
+			protected Token newObject(Handle handle) {
+				return new Token(handle);
+			}
+		};
+
+		private final Handle handle;
+		private long snapshotId;
 
 		public Token(long snapshotId) {
+			this.handle = null;
 			this.snapshotId = snapshotId;
 		}
 
+		private Token(Handle handle) {
+			this.handle = handle;
+		}
+
+		/**
+		 * @return A pooled instance, to be released once processed
+		 */
+		static Token newInstance(long snapshotId) {
+			Token t = RECYCLER.get();
+			t.snapshotId = snapshotId;
+			return t;
+		}
+
+		@Override
+		Token copy() {
+			return new Token(snapshotId);
+		}
+
+		@Override
+		public void release() {
+			if (handle == null)
+				return;
+
+			reset();
+			snapshotId = 0;
+			RECYCLER.recycle(this, handle);
+		}
+
 		public long getSnapshotId() {
 			return snapshotId;
 		}
@@ -106,6 +325,187 @@ public interface NetOverlay {
 		public String toString() {
 			return "Token [snapshotId=" + snapshotId + ", seqn=" + seqn + ", senderId=" + senderId + ", destId=" + destId + "]";
 		}
+	}
+
+	/**
+	 * Completion of a snapshot in the subtree of the sender, sent to its parent
+	 * in the spanning tree together with the sum of the local snapshots of the
+	 * subtree
+	 */
+	public class SnapshotDone extends Message {
+
+		private static final Recycler<SnapshotDone> RECYCLER = new Recycler<SnapshotDone>() {
+
+			@Override
+			protected SnapshotDone newObject(Handle handle) {
+				return new SnapshotDone(handle);
+			}
+		};
+
+		private final Handle handle;
+		private long snapshotId;
+
+		// Balance and incoming money summed over the subtree branches
+		private long total;
+		private int branches;
+
+		public SnapshotDone(long snapshotId, long total, int branches) {
+			this.handle = null;
+			this.snapshotId = snapshotId;
+			this.total = total;
+			this.branches = branches;
+		}
+
+		private SnapshotDone(Handle handle) {
+			this.handle = handle;
+		}
+
+		/**
+		 * @return A pooled instance, to be released once processed
+		 */
+		static SnapshotDone newInstance(long snapshotId, long total, int branches) {
+			SnapshotDone t = RECYCLER.get();
+			t.snapshotId = snapshotId;
+			t.total = total;
+			t.branches = branches;
+			return t;
+		}
+
+		@Override
+		SnapshotDone copy() {
+			return new SnapshotDone(snapshotId, total, branches);
+		}
+
+		@Override
+		public void release() {
+			if (handle == null)
+				return;
+
+			reset();
+			snapshotId = 0;
+			total = 0;
+			branches = 0;
+			RECYCLER.recycle(this, handle);
+		}
+
+		public long getSnapshotId() {
+			return snapshotId;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		/**
+		 * @return The number of branches in the subtree
+		 */
+		public int getBranches() {
+			return branches;
+		}
+
+		@Override
+		public String toString() {
+			return "SnapshotDone [snapshotId=" + snapshotId + ", total=" + total + ", branches=" + branches + ", seqn=" + seqn + ", senderId=" + senderId + ", destId=" + destId + "]";
+		}
+	}
+
+	/**
+	 * Local snapshot of a branch reported to a snapshot collector service
+	 */
+	public class SnapshotReport extends Message {
+
+		private final long snapshotId;
+		private final int branchId;
+		private final long balance;
+		private final long incoming;
+
+		// Branches summed in the balance by the spanning tree aggregation, 0
+		// for the local snapshot of the reporting branch
+		private final int aggregated;
+
+		// Recorded accounts, all of them if the parent is null
+		private final Long parentId;
+		private final Map<Integer, Long> accounts;
 
+		// Lai-Yang counters: money sent to and received from each branch
+		private final Map<Integer, Long> sent;
+		private final Map<Integer, Long> received;
+
+		public SnapshotReport(long snapshotId, int branchId, long balance, long incoming, Long parentId, Map<Integer, Long> accounts, Map<Integer, Long> sent, Map<Integer, Long> received) {
+			this(snapshotId, branchId, balance, incoming, 0, parentId, accounts, sent, received);
+		}
+
+		/**
+		 * Report of the total of the spanning tree rooted at the branch
+		 */
+		public SnapshotReport(long snapshotId, int branchId, long total, int aggregated) {
+			this(snapshotId, branchId, total, 0, aggregated, null, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+		}
+
+		SnapshotReport(long snapshotId, int branchId, long balance, long incoming, int aggregated, Long parentId, Map<Integer, Long> accounts, Map<Integer, Long> sent, Map<Integer, Long> received) {
+			this.snapshotId = snapshotId;
+			this.branchId = branchId;
+			this.balance = balance;
+			this.incoming = incoming;
+			this.aggregated = aggregated;
+			this.parentId = parentId;
+			this.accounts = accounts;
+			this.sent = sent;
+			this.received = received;
+		}
+
+		@Override
+		SnapshotReport copy() {
+			return new SnapshotReport(snapshotId, branchId, balance, incoming, aggregated, parentId, accounts, sent, received);
+		}
+
+		public long getSnapshotId() {
+			return snapshotId;
+		}
+
+		public int getBranchId() {
+			return branchId;
+		}
+
+		public long getBalance() {
+			return balance;
+		}
+
+		public long getIncoming() {
+			return incoming;
+		}
+
+		public int getAggregated() {
+			return aggregated;
+		}
+
+		public Long getParentId() {
+			return parentId;
+		}
+
+		public Map<Integer, Long> getAccounts() {
+			return accounts;
+		}
+
+		public Map<Integer, Long> getSent() {
+			return sent;
+		}
+
+		public Map<Integer, Long> getReceived() {
+			return received;
+		}
+
+		/**
+		 * @return true if the report carries the Lai-Yang counters instead of
+		 *         the incoming money
+		 */
+		public boolean hasCounters() {
+			return !sent.isEmpty() || !received.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "SnapshotReport [snapshotId=" + snapshotId + ", branchId=" + branchId + ", balance=" + balance + ", incoming=" + incoming + ", seqn=" + seqn + ", senderId=" + senderId + "]";
+		}
 	}
 }
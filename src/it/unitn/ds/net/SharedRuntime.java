@@ -0,0 +1,84 @@
+package it.unitn.ds.net;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.Timer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by many branches running in the same process: a pool of
+ * event loops for the overlays, a single retransmission timer wheel and a
+ * bounded set of single-threaded branch executors. A branch is pinned to one
+ * executor so its activities are still processed by a single thread.
+ * Resources are released by {@link #shutdown()}, not by the branches.
+ */
+public class SharedRuntime {
+
+	private final EventLoopGroup eventLoops;
+	private final Timer timer;
+	private final ScheduledExecutorService[] branchExecutors;
+
+	/**
+	 * Runtime sized on the available processors
+	 */
+	public SharedRuntime() {
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param eventLoops
+	 *            Number of event loops shared by the overlays
+	 * @param branchExecutors
+	 *            Number of threads shared by the branches
+	 */
+	public SharedRuntime(int eventLoops, int branchExecutors) {
+		if (eventLoops < 1 || branchExecutors < 1)
+			throw new IllegalArgumentException("Invalid pool size");
+
+		this.eventLoops = new NioEventLoopGroup(eventLoops, newThreadFactory("Net Stack Worker"));
+		this.timer = LinkHandler.newRetransmissionTimer();
+
+		ThreadFactory tf = newThreadFactory("Branch Looper");
+		this.branchExecutors = new ScheduledExecutorService[branchExecutors];
+		for (int i = 0; i < branchExecutors; i++)
+			this.branchExecutors[i] = Executors.newSingleThreadScheduledExecutor(tf);
+	}
+
+	private static ThreadFactory newThreadFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " " + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public EventLoopGroup getEventLoops() {
+		return eventLoops;
+	}
+
+	public Timer getTimer() {
+		return timer;
+	}
+
+	/**
+	 * @return The single-threaded executor the given branch is pinned to
+	 */
+	public ScheduledExecutorService getBranchExecutor(int branchId) {
+		return branchExecutors[Math.floorMod(branchId, branchExecutors.length)];
+	}
+
+	public void shutdown() {
+		for (ScheduledExecutorService e : branchExecutors)
+			e.shutdownNow();
+		timer.stop();
+		eventLoops.shutdownGracefully();
+	}
+}
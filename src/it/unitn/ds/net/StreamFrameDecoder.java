@@ -0,0 +1,29 @@
+package it.unitn.ds.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import java.util.List;
+
+/**
+ * Decode the frames received on a stream connection, once the length prefix
+ * has been removed. Emits one message for each record.
+ * Decoded messages are pooled instances
+ */
+@Sharable
+public class StreamFrameDecoder extends MessageToMessageDecoder<ByteBuf> {
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		int msgType = in.readByte();
+		if (msgType != LinkDataEncoder.LNK_DATA)
+			throw new Exception("Unexpected frame type " + msgType);
+
+		int senderId = in.readInt();
+		int records = in.readUnsignedShort();
+
+		for (int i = 0; i < records; i++)
+			out.add(LinkDecoder.decodeData(in, in.readInt(), senderId));
+	}
+}
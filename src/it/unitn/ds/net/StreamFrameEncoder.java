@@ -0,0 +1,115 @@
+package it.unitn.ds.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import it.unitn.ds.net.NetOverlay.Message;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encode the data messages written on a stream connection in frames using the
+ * same layout of the link layer data frames: a header with the sender followed
+ * by one record for each message. The length prefix is added by the next
+ * handler. Messages written during the same event loop run are sent in a
+ * single frame, flushed at the end of the run.
+ * Not sharable since it keeps the frame under construction for the channel
+ */
+class StreamFrameEncoder extends ChannelOutboundHandlerAdapter {
+
+	// Maximum frame size in bytes
+	public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+	// Frame header: type, senderId, records count
+	private static final int FRAME_HEADER_SIZE = 1 + 4 + 2;
+
+	private final int senderId;
+
+	private final List<Message> messages = new ArrayList<Message>();
+	private final List<ChannelPromise> promises = new ArrayList<ChannelPromise>();
+
+	// Encoded size of the frame under construction
+	private int frameSize = FRAME_HEADER_SIZE;
+	private boolean flushScheduled = false;
+
+	public StreamFrameEncoder(int senderId) {
+		this.senderId = senderId;
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (!(msg instanceof Message)) {
+			ctx.write(msg, promise);
+			return;
+		}
+
+		Message m = (Message) msg;
+		int recordSize = 4 + LinkDataEncoder.dataPayloadSize(m);
+		if (FRAME_HEADER_SIZE + recordSize > MAX_FRAME_SIZE) {
+			promise.tryFailure(new IllegalArgumentException("Message too large for a frame: " + m));
+			return;
+		}
+
+		// Frame budget reached: send it right away
+		if (frameSize + recordSize > MAX_FRAME_SIZE)
+			flushFrame(ctx);
+
+		messages.add(m);
+		promises.add(promise);
+		frameSize += recordSize;
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			ctx.executor().execute(() -> flushFrame(ctx));
+		}
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		flushFrame(ctx);
+	}
+
+	private void flushFrame(ChannelHandlerContext ctx) {
+		flushScheduled = false;
+
+		if (!messages.isEmpty())
+			writeFrame(ctx);
+
+		ctx.flush();
+	}
+
+	private void writeFrame(ChannelHandlerContext ctx) {
+		List<ChannelPromise> framePromises = new ArrayList<ChannelPromise>(promises);
+
+		ByteBuf buf = ctx.alloc().buffer(frameSize);
+		try {
+			buf.writeByte(LinkDataEncoder.LNK_DATA);
+			buf.writeInt(senderId);
+			buf.writeShort(messages.size());
+
+			for (Message m : messages) {
+				buf.writeInt(m.seqn);
+				LinkDataEncoder.encodeDataPayload(m, buf);
+			}
+		} catch (Exception e) {
+			buf.release();
+			for (ChannelPromise p : framePromises)
+				p.tryFailure(e);
+			return;
+		} finally {
+			messages.clear();
+			promises.clear();
+			frameSize = FRAME_HEADER_SIZE;
+		}
+
+		ctx.write(buf).addListener((ChannelFuture future) -> {
+			for (ChannelPromise p : framePromises)
+				if (future.isSuccess())
+					p.trySuccess();
+				else
+					p.tryFailure(future.cause());
+		});
+	}
+}
@@ -0,0 +1,458 @@
+package it.unitn.ds.net;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * TCP based overlay network between branches
+ * Every branch opens a long-lived connection to each peer it sends messages
+ * to, reliability and FIFO ordering are provided by the stream. Messages are
+ * sent in length-prefixed frames with the same payload layout of the UDP
+ * overlay. The receiver acknowledges the messages passed to the application
+ * on the same connection: messages not yet acknowledged when a connection is
+ * lost are sent again on the next one and duplicates are discarded by the
+ * receiver.
+ */
+public class TCPNetOverlay implements NetOverlay {
+
+	// Default size of thread pool to handle in/out messages
+	public static final int DEFAULT_POOL_SIZE = 1;
+
+	// Delay in milliseconds between connection attempts to a peer not started
+	public static final long RECONNECT_DELAY = 100;
+
+	// Connection attempts to a peer before failing the unacknowledged messages
+	public static final int MAX_RETRIES = 10;
+
+	// Size of the length prefix of the frames
+	private static final int LENGTH_FIELD_SIZE = 4;
+
+	// Ack frame: type, senderId, cumulative sequence number
+	private static final int ACK_FRAME_SIZE = 1 + 4 + 4;
+
+	private final EventLoopGroup workersGroup;
+
+	// Shared threads, null if the overlay owns its event loops
+	private final SharedRuntime runtime;
+
+	private final ServerBootstrap srvBoot;
+	private final Bootstrap chBoot;
+
+	private final MessageInbox inbox = new MessageInbox();
+
+	// Outgoing connections by destination branch
+	private final Map<Integer, Peer> peers = new ConcurrentHashMap<Integer, Peer>();
+
+	// Last sequence number passed to the application by source branch
+	private final Map<Integer, Source> sources = new ConcurrentHashMap<Integer, Source>();
+
+	int localBranch;
+	Map<Integer, InetSocketAddress> branches;
+
+	private Channel serverChannel;
+	private volatile boolean stopped;
+
+	public TCPNetOverlay() {
+		this(DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param poolSize
+	 *            Number of event loops handling the connections
+	 */
+	public TCPNetOverlay(int poolSize) {
+		ThreadFactory tf = new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Net Stack Worker");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		workersGroup = new NioEventLoopGroup(poolSize, tf);
+		runtime = null;
+		srvBoot = new ServerBootstrap();
+		chBoot = new Bootstrap();
+	}
+
+	/**
+	 * Overlay using the event loops of the given runtime
+	 */
+	public TCPNetOverlay(SharedRuntime runtime) {
+		this.workersGroup = runtime.getEventLoops();
+		this.runtime = runtime;
+		srvBoot = new ServerBootstrap();
+		chBoot = new Bootstrap();
+	}
+
+	@Override
+	public CompletableFuture<Void> start(int localBranch, Map<Integer, InetSocketAddress> branches) {
+		this.localBranch = localBranch;
+		this.branches = branches;
+
+		InetSocketAddress localAddr = branches.get(localBranch);
+		if (localAddr == null)
+			throw new IllegalArgumentException("Invalid local branch ID");
+
+		// Incoming connections only receive messages
+		srvBoot.group(workersGroup).channel(NioServerSocketChannel.class).option(ChannelOption.SO_REUSEADDR, true).childOption(ChannelOption.TCP_NODELAY, true).childOption(ChannelOption.ALLOCATOR, UDPNetOverlay.ALLOCATOR).childHandler(new InboundInitializer());
+
+		// Outgoing connections only send messages
+		chBoot.group(workersGroup).channel(NioSocketChannel.class).option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.ALLOCATOR, UDPNetOverlay.ALLOCATOR).handler(new OutboundInitializer());
+
+		CompletableFuture<Void> startFut = new CompletableFuture<Void>();
+
+		srvBoot.bind(localAddr).addListener((ChannelFuture f) -> {
+			if (f.isSuccess()) {
+				serverChannel = f.channel();
+				startFut.complete(null);
+			} else
+				startFut.completeExceptionally(f.cause());
+		});
+
+		return startFut;
+	}
+
+	@Override
+	public void stop() {
+		stopped = true;
+
+		if (serverChannel != null)
+			serverChannel.close();
+
+		for (Peer p : peers.values())
+			p.close();
+
+		// Shared event loops are released with their runtime
+		if (runtime == null)
+			workersGroup.shutdownGracefully();
+	}
+
+	@Override
+	public CompletableFuture<Message> sendMessage(int remoteBranch, Message msg) {
+
+		if (!branches.containsKey(remoteBranch))
+			throw new IllegalArgumentException("Invalid branch ID");
+
+		if (serverChannel == null)
+			throw new IllegalStateException("Overlay not started");
+
+		msg.destId = remoteBranch;
+		msg.senderId = localBranch;
+		msg.deliveryFut = new CompletableFuture<Message>();
+
+		peers.computeIfAbsent(remoteBranch, Peer::new).send(msg);
+
+		return msg.deliveryFut;
+	}
+
+	@Override
+	public void setMessageListener(Runnable listener, Executor executor) {
+		inbox.setListener(listener, executor);
+	}
+
+	@Override
+	public int drainMessages(int maxMessages, Consumer<Message> consumer) {
+		return inbox.drain(maxMessages, consumer);
+	}
+
+	/**
+	 * Outgoing connection to a remote branch
+	 */
+	private class Peer {
+
+		private final int destId;
+
+		// Messages not yet acknowledged by the destination, in sequence order,
+		// sent again on the next connection if the current one is lost
+		private final ArrayDeque<Message> unacked = new ArrayDeque<Message>();
+
+		private Channel channel;
+		private boolean connecting;
+		private int retries;
+		private int nextSeq;
+
+		Peer(int destId) {
+			this.destId = destId;
+		}
+
+		synchronized void send(Message msg) {
+			msg.seqn = nextSeq++;
+			unacked.add(msg);
+
+			if (channel != null)
+				write(channel, msg);
+			else if (!connecting)
+				connect();
+		}
+
+		/**
+		 * Complete the messages up to the given sequence number, passed to the
+		 * application by the destination
+		 */
+		synchronized void acked(int seqn) {
+			Message m;
+			while ((m = unacked.peek()) != null && m.seqn - seqn <= 0) {
+				unacked.poll();
+				m.deliveryFut.complete(m);
+			}
+		}
+
+		synchronized void close() {
+			if (channel != null)
+				channel.close();
+		}
+
+		private void connect() {
+			connecting = true;
+			chBoot.connect(branches.get(destId)).addListener((ChannelFuture f) -> connected(f));
+		}
+
+		private synchronized void connected(ChannelFuture f) {
+			if (!f.isSuccess()) {
+				// Peer not started yet: retry later, then give up
+				if (++retries <= MAX_RETRIES) {
+					workersGroup.schedule(this::reconnect, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				connecting = false;
+				retries = 0;
+				fail(new ConnectException("Branch " + destId + " unreachable"));
+				return;
+			}
+
+			connecting = false;
+			retries = 0;
+			channel = f.channel();
+
+			// Connection lost: unacknowledged messages are sent again on a new
+			// one, otherwise the next message opens it
+			channel.closeFuture().addListener((ChannelFuture cf) -> disconnected(cf.channel()));
+
+			// Messages queued while connecting and the ones not acknowledged
+			// on the previous connection
+			for (Message m : unacked)
+				write(channel, m);
+		}
+
+		private synchronized void reconnect() {
+			if (stopped)
+				fail(new ConnectException("Overlay stopped"));
+			else
+				connect();
+		}
+
+		private synchronized void disconnected(Channel ch) {
+			if (channel != ch)
+				return;
+
+			channel = null;
+			if (stopped)
+				fail(new ConnectException("Overlay stopped"));
+			else if (!unacked.isEmpty() && !connecting)
+				connect();
+		}
+
+		private synchronized void rejected(Message msg, Throwable cause) {
+			if (unacked.remove(msg))
+				msg.deliveryFut.completeExceptionally(cause);
+		}
+
+		/**
+		 * Fail the messages not acknowledged, they may have been received
+		 * before the connection was lost
+		 */
+		private void fail(Throwable cause) {
+			for (Message m : unacked)
+				m.deliveryFut.completeExceptionally(cause);
+			unacked.clear();
+		}
+
+		// Writes from the same thread are processed in order by the channel
+		// event loop, the write is submitted as a task since plain writes from
+		// other threads don't wake up the event loop. A message is completed
+		// by the acknowledgement of the destination: failed writes on a
+		// closed connection are sent again, while messages refused by the
+		// encoder on an open one are failed
+		private void write(Channel ch, Message msg) {
+			ch.eventLoop().execute(() -> ch.write(msg).addListener((ChannelFuture f) -> {
+				if (!f.isSuccess() && f.channel().isActive())
+					rejected(msg, f.cause());
+			}));
+		}
+	}
+
+	/**
+	 * Messages received from a source branch, possibly on more than one
+	 * connection when the previous one was lost
+	 */
+	private class Source {
+
+		// Sequence numbers of the sender start from zero
+		private int delivered = -1;
+
+		/**
+		 * Pass the message to the application unless already delivered. Every
+		 * connection resends a contiguous range of messages so the ones after
+		 * the last delivered are always in sequence
+		 */
+		synchronized void receive(ChannelHandlerContext ctx, Message msg) {
+			if (msg.seqn - delivered <= 0) {
+				msg.release();
+				return;
+			}
+
+			delivered = msg.seqn;
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	/**
+	 * Discard duplicates of the accepted connection and acknowledge the
+	 * received messages once per read burst
+	 */
+	class InboundHandler extends ChannelInboundHandlerAdapter {
+
+		private int senderId;
+		private int ackSeqn;
+		private boolean ackPending;
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object in) throws Exception {
+			Message msg = (Message) in;
+			senderId = msg.senderId;
+			ackSeqn = msg.seqn;
+			ackPending = true;
+
+			sources.computeIfAbsent(msg.senderId, (id) -> new Source()).receive(ctx, msg);
+		}
+
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+			if (ackPending) {
+				ackPending = false;
+
+				ByteBuf buf = ctx.alloc().buffer(ACK_FRAME_SIZE);
+				buf.writeByte(LinkAckEncoder.LNK_ACK);
+				buf.writeInt(localBranch);
+				buf.writeInt(ackSeqn);
+				ctx.writeAndFlush(buf);
+			}
+			ctx.fireChannelReadComplete();
+		}
+	}
+
+	/**
+	 * Complete the messages acknowledged by the destination of an outgoing
+	 * connection
+	 */
+	@Sharable
+	class AckHandler extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object in) throws Exception {
+			ByteBuf buf = (ByteBuf) in;
+			try {
+				int msgType = buf.readByte();
+				if (msgType != LinkAckEncoder.LNK_ACK)
+					throw new Exception("Unexpected frame type " + msgType);
+
+				Peer p = peers.get(buf.readInt());
+				int seqn = buf.readInt();
+				if (p != null)
+					p.acked(seqn);
+			} finally {
+				buf.release();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			cause.printStackTrace();
+		}
+	}
+
+	/**
+	 * Network stack of the accepted connections
+	 */
+	@Sharable
+	class InboundInitializer extends ChannelInitializer<Channel> {
+
+		private final LengthFieldPrepender prepender = new LengthFieldPrepender(LENGTH_FIELD_SIZE);
+		private final StreamFrameDecoder dec = new StreamFrameDecoder();
+		private final AppMsgHandler app = new AppMsgHandler(inbox);
+
+		@Override
+		protected void initChannel(Channel ch) throws Exception {
+			ChannelPipeline pipeline = ch.pipeline();
+			// Split the stream in frames and strip the length prefix
+			pipeline.addLast(new LengthFieldBasedFrameDecoder(StreamFrameEncoder.MAX_FRAME_SIZE + LENGTH_FIELD_SIZE, 0, LENGTH_FIELD_SIZE, 0, LENGTH_FIELD_SIZE));
+
+			// Prefix each ack frame with its length
+			pipeline.addLast(prepender);
+
+			// Decoder for incoming messages
+			pipeline.addLast(dec);
+
+			// Duplicates filter and acknowledgements
+			pipeline.addLast(new InboundHandler());
+
+			// Dispatch incoming messages on the application message bus
+			pipeline.addLast(app);
+		}
+	}
+
+	/**
+	 * Network stack of the outgoing connections
+	 */
+	@Sharable
+	class OutboundInitializer extends ChannelInitializer<Channel> {
+
+		private final LengthFieldPrepender prepender = new LengthFieldPrepender(LENGTH_FIELD_SIZE);
+		private final AckHandler ack = new AckHandler();
+
+		@Override
+		protected void initChannel(Channel ch) throws Exception {
+			ChannelPipeline pipeline = ch.pipeline();
+			// Split the incoming acks in frames and strip the length prefix
+			pipeline.addLast(new LengthFieldBasedFrameDecoder(ACK_FRAME_SIZE + LENGTH_FIELD_SIZE, 0, LENGTH_FIELD_SIZE, 0, LENGTH_FIELD_SIZE));
+
+			// Complete the acknowledged messages
+			pipeline.addLast(ack);
+
+			// Prefix each frame with its length
+			pipeline.addLast(prepender);
+
+			// Encoder for outgoing messages, batching them in frames
+			pipeline.addLast(new StreamFrameEncoder(localBranch));
+		}
+	}
+}
@@ -1,54 +1,236 @@
 package it.unitn.ds.net;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * UDP based overlay network between branches
+ * The native epoll transport can be optionally used when available, in that
+ * case every event loop has its own socket bound to the branch address with
+ * SO_REUSEPORT so that the kernel spreads incoming datagrams across them
  */
 public class UDPNetOverlay implements NetOverlay {
 
-	// Size of thread pool to handle in/out messages
-	private static final int POOL_SIZE = 1;
+	// Default size of thread pool to handle in/out messages
+	public static final int DEFAULT_EVENT_LOOPS = 1;
 
-	private final EventLoopGroup workersGroup = new NioEventLoopGroup(POOL_SIZE, new ThreadFactory() {
+	// Pooled direct buffers shared by all the overlays in the process
+	static final ByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(true);
 
-		@Override
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(r, "Net Stack Worker");
-			t.setDaemon(true);
-			return t;
-		}
-	});
+	private final EventLoopGroup workersGroup;
+	private final Class<? extends Channel> channelType;
+
+	// Number of sockets bound to the local address
+	private final int sockets;
 
-	private final Queue<Message> incomingQueue = new ConcurrentLinkedDeque<Message>();
-	private final Queue<CompletableFuture<Message>> cb = new ConcurrentLinkedDeque<CompletableFuture<Message>>();
+	// Shared threads, null if the overlay owns its event loops and timer
+	private final SharedRuntime runtime;
+
+	private final MessageInbox inbox = new MessageInbox();
 
 	private final Bootstrap chBoot;
 
 	int localBranch;
 	Map<Integer, InetSocketAddress> branches;
 
-	private AtomicReference<CompletableFuture<Message>> lastSendFut = new AtomicReference<CompletableFuture<Message>>();
+	private final int sendWindow;
+	private final int maxRetries;
+	private final long frameLinger;
+
+	// Frames encoded with the compact codec
+	private final boolean compact;
+
+	// Messages from each branch delivered in sequence
+	private final boolean ordered;
+
+	// Bound channels used to send and receive all datagrams
+	private volatile Channel[] channels;
+
+	private StackInitializer stack;
 
 	public UDPNetOverlay() {
+		this(new Config());
+	}
+
+	/**
+	 * Overlay using the event loops and the retransmission timer of the given
+	 * runtime
+	 */
+	public UDPNetOverlay(SharedRuntime runtime) {
+		this(new Config().runtime(runtime));
+	}
+
+	public UDPNetOverlay(Config config) {
+		this.sendWindow = config.sendWindow;
+		this.maxRetries = config.maxRetries;
+		this.frameLinger = config.frameLinger;
+		this.compact = config.compact;
+		this.ordered = config.ordered;
+		this.runtime = config.runtime;
 		chBoot = new Bootstrap();
+
+		if (runtime != null) {
+			workersGroup = runtime.getEventLoops();
+			channelType = NioDatagramChannel.class;
+			sockets = 1;
+			return;
+		}
+
+		if (config.eventLoops < 1)
+			throw new IllegalArgumentException("Invalid number of event loops");
+
+		ThreadFactory tf = new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Net Stack Worker");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		EventLoopGroup epollGroup = null;
+		if (config.epoll && Epoll.isAvailable()) {
+			try {
+				epollGroup = new EpollEventLoopGroup(config.eventLoops, tf);
+			} catch (Throwable e) {
+				// Native library loaded but not usable on this JVM
+				System.err.println("Native transport unavailable, using NIO: " + e);
+			}
+		}
+
+		if (epollGroup != null) {
+			workersGroup = epollGroup;
+			channelType = EpollDatagramChannel.class;
+			sockets = config.eventLoops;
+		} else {
+			workersGroup = new NioEventLoopGroup(config.eventLoops, tf);
+			channelType = NioDatagramChannel.class;
+			// Without SO_REUSEPORT only one socket can be bound
+			sockets = 1;
+		}
+	}
+
+	/**
+	 * Settings of the overlay, the setters return the same instance
+	 */
+	public static class Config {
+
+		int sendWindow = LinkHandler.DEFAULT_WINDOW_SIZE;
+		int maxRetries = LinkHandler.DEFAULT_MAX_RETRIES;
+		long frameLinger = 0;
+		boolean compact = false;
+		boolean ordered = true;
+		int eventLoops = DEFAULT_EVENT_LOOPS;
+		boolean epoll = false;
+		SharedRuntime runtime;
+
+		/**
+		 * @param sendWindow
+		 *            Maximum number of unacknowledged messages for each
+		 *            destination
+		 */
+		public Config sendWindow(int sendWindow) {
+			this.sendWindow = sendWindow;
+			return this;
+		}
+
+		/**
+		 * @param maxRetries
+		 *            Retransmissions of a message after which the destination
+		 *            is unreachable and the pending messages are failed
+		 */
+		public Config maxRetries(int maxRetries) {
+			this.maxRetries = maxRetries;
+			return this;
+		}
+
+		/**
+		 * @param frameLinger
+		 *            Time in microseconds outgoing messages wait to be batched
+		 *            in the same frame, if zero only the messages sent during
+		 *            the same event loop run are batched
+		 */
+		public Config frameLinger(long frameLinger) {
+			this.frameLinger = frameLinger;
+			return this;
+		}
+
+		/**
+		 * @param compact
+		 *            Send frames with variable length fields, incoming frames
+		 *            are decoded in both formats
+		 */
+		public Config compact(boolean compact) {
+			this.compact = compact;
+			return this;
+		}
+
+		/**
+		 * @param ordered
+		 *            If false messages are delivered as soon as received, for
+		 *            applications not requiring FIFO channels
+		 */
+		public Config ordered(boolean ordered) {
+			this.ordered = ordered;
+			return this;
+		}
+
+		/**
+		 * @param eventLoops
+		 *            Number of event loops handling in/out messages, with NIO
+		 *            a single socket (and event loop) handles all messages.
+		 *            Ignored with a shared runtime
+		 */
+		public Config eventLoops(int eventLoops) {
+			this.eventLoops = eventLoops;
+			return this;
+		}
+
+		/**
+		 * @param epoll
+		 *            Use the native epoll transport with a socket for each
+		 *            event loop if available, otherwise NIO is used. Ignored
+		 *            with a shared runtime, whose event loops are NIO
+		 */
+		public Config epoll(boolean epoll) {
+			this.epoll = epoll;
+			return this;
+		}
+
+		/**
+		 * @param runtime
+		 *            Threads shared with other overlays, null if the overlay
+		 *            owns its event loops and timer
+		 */
+		public Config runtime(SharedRuntime runtime) {
+			this.runtime = runtime;
+			return this;
+		}
 	}
 
 	@Override
@@ -58,93 +240,160 @@ public class UDPNetOverlay implements NetOverlay {
 
 		CompletableFuture<Void> startFut = new CompletableFuture<Void>();
 
-		chBoot.group(workersGroup).channel(NioDatagramChannel.class).option(ChannelOption.SO_BROADCAST, true).handler(new StackInitializer());
+		chBoot.group(workersGroup).channel(channelType).option(ChannelOption.SO_BROADCAST, true).option(ChannelOption.ALLOCATOR, ALLOCATOR).handler(stack = new StackInitializer());
+
+		if (sockets > 1)
+			chBoot.option(EpollChannelOption.SO_REUSEPORT, true);
 
 		InetSocketAddress localAddr = branches.get(localBranch);
 		if (localAddr == null)
 			throw new IllegalArgumentException("Invalid local branch ID");
 
+		bind(localAddr, new Channel[sockets], 0, startFut);
+
+		return startFut;
+	}
+
+	/**
+	 * Bind the sockets one after the other, the channels are published once
+	 * all of them are bound
+	 */
+	private void bind(InetSocketAddress localAddr, Channel[] bound, int socket, CompletableFuture<Void> startFut) {
 		chBoot.bind(localAddr).addListener((ChannelFuture f) -> {
-			if (f.isSuccess())
-				startFut.complete(null);
-			else
+			if (f.isSuccess()) {
+				bound[socket] = f.channel();
+				if (socket + 1 < bound.length) {
+					bind(localAddr, bound, socket + 1, startFut);
+				} else {
+					channels = bound;
+					startFut.complete(null);
+				}
+			} else {
+				// The sockets already bound are closed, retransmissions
+				// scheduled by the stack (if any) are cancelled and the timer
+				// released
+				for (int i = 0; i < socket; i++)
+					bound[i].close();
+				f.channel().close();
+				stack.lnk.stop();
 				startFut.completeExceptionally(f.cause());
+			}
 		});
-
-		return startFut;
 	}
 
 	public void stop() {
-		workersGroup.shutdownGracefully();
+		if (channels != null)
+			for (Channel ch : channels)
+				ch.close();
+
+		if (stack != null)
+			stack.lnk.stop();
+
+		// Shared event loops are released with their runtime
+		if (runtime == null)
+			workersGroup.shutdownGracefully();
 	}
 
 	@Override
 	public CompletableFuture<Message> sendMessage(int remoteBranch, Message msg) {
 
-		InetSocketAddress remoteAddr = branches.get(remoteBranch);
-		if (remoteAddr == null)
+		if (!branches.containsKey(remoteBranch))
 			throw new IllegalArgumentException("Invalid branch ID");
 
+		Channel[] channels = this.channels;
+		if (channels == null)
+			throw new IllegalStateException("Overlay not started");
+
 		msg.destId = remoteBranch;
 		msg.senderId = localBranch;
 		msg.deliveryFut = new CompletableFuture<Message>();
 
-		// To achieve sequential transmission build a virtual queue by
-		// concatenating delivery futures: send the next message only when the
-		// previous is delivered
-
-		// Atomically change the last delivery future (the tail of the virtual
-		// queue)
-		CompletableFuture<Message> lastFut = lastSendFut.getAndSet(msg.deliveryFut);
-		if (lastFut == null)
-			sendUDPMessage(remoteAddr, msg);
-		else {
-			lastFut.thenRun(() -> sendUDPMessage(remoteAddr, msg));
-			// Send current message even if the previous completes exceptionally
-			lastFut.exceptionally((ex) -> {
-				sendUDPMessage(remoteAddr, msg);
-				return null;
-			});
+		// Failed before entering the send window, where it would be
+		// retransmitted forever
+		if (!LinkDataEncoder.fitsFrame(msg, compact)) {
+			msg.deliveryFut.completeExceptionally(new IllegalArgumentException("Message too large for a datagram: " + msg));
+			return msg.deliveryFut;
 		}
 
+		// Messages are sent as addressed datagrams through a bound channel,
+		// always the same for a destination. Writes from the same thread are
+		// processed in order by the channel event loop and the link layer
+		// queues them in the send window of the destination: messages to the
+		// same branch keep FIFO order while different branches progress
+		// independently. The channel is not flushed, the encoder batches
+		// messages for the same destination and sends the frames by itself.
+		// The write is submitted as a task since plain writes from other
+		// threads don't wake up the event loop
+		Channel channel = channels[socketOf(remoteBranch, channels.length)];
+		channel.eventLoop().execute(() -> channel.write(msg));
+
 		return msg.deliveryFut;
 	}
 
-	private void sendUDPMessage(InetSocketAddress remoteAddr, Message m) {
-		chBoot.connect(remoteAddr).addListener(new ChannelFutureListener() {
+	// Socket used to send the messages to a destination
+	private static int socketOf(int remoteBranch, int sockets) {
+		return Math.floorMod(remoteBranch, sockets);
+	}
 
-			@Override
-			public void operationComplete(ChannelFuture future) throws Exception {
-				future.channel().writeAndFlush(m);
-				// Once the message is delivered close the channel
-				m.deliveryFut.thenRun(() -> future.channel().close());
-			}
-		});
+	/**
+	 * Copies for all the destinations of a channel are written by a single
+	 * event loop task
+	 */
+	@Override
+	public Map<Integer, CompletableFuture<Message>> broadcastMessage(Collection<Integer> remoteBranches, Message m) {
+		Channel[] channels = this.channels;
+		if (channels == null)
+			throw new IllegalStateException("Overlay not started");
+
+		Map<Integer, CompletableFuture<Message>> futs = new HashMap<Integer, CompletableFuture<Message>>(remoteBranches.size() * 2);
+		List<List<Message>> copies = new ArrayList<List<Message>>(channels.length);
+		for (int i = 0; i < channels.length; i++)
+			copies.add(new ArrayList<Message>());
+
+		for (int remoteBranch : remoteBranches) {
+			if (!branches.containsKey(remoteBranch))
+				throw new IllegalArgumentException("Invalid branch ID");
+
+			Message copy = m.copy();
+			copy.destId = remoteBranch;
+			copy.senderId = localBranch;
+			copy.deliveryFut = new CompletableFuture<Message>();
+			futs.put(remoteBranch, copy.deliveryFut);
+
+			if (LinkDataEncoder.fitsFrame(copy, compact))
+				copies.get(socketOf(remoteBranch, channels.length)).add(copy);
+			else
+				copy.deliveryFut.completeExceptionally(new IllegalArgumentException("Message too large for a datagram: " + copy));
+		}
+
+		for (int i = 0; i < channels.length; i++) {
+			Channel channel = channels[i];
+			List<Message> sent = copies.get(i);
+			if (!sent.isEmpty())
+				channel.eventLoop().execute(() -> {
+					for (Message copy : sent)
+						channel.write(copy);
+				});
+		}
+
+		return futs;
 	}
 
 	/**
-	 * Notifies waiting dequeuers or enqueue message in incoming queue
-	 * 
-	 * @param newMessage
+	 * @return The link layer handler of the overlay, exposing link statistics
 	 */
-	void messageReceived(Message newMessage) {
-		CompletableFuture<Message> f = cb.poll();
-		if (f != null)
-			f.complete(newMessage);
-		else
-			incomingQueue.add(newMessage);
+	public LinkHandler getLinkHandler() {
+		return stack.lnk;
 	}
 
 	@Override
-	public CompletableFuture<Message> receiveMessage() {
-		Message m = incomingQueue.poll();
-		if (m != null)
-			return CompletableFuture.completedFuture(m);
-		else {
-			CompletableFuture<Message> f = new CompletableFuture<Message>();
-			cb.add(f);
-			return f;
-		}
+	public void setMessageListener(Runnable listener, Executor executor) {
+		inbox.setListener(listener, executor);
+	}
+
+	@Override
+	public int drainMessages(int maxMessages, Consumer<Message> consumer) {
+		return inbox.drain(maxMessages, consumer);
 	}
 
 	/**
@@ -155,9 +404,9 @@ public class UDPNetOverlay implements NetOverlay {
 	class StackInitializer extends ChannelInitializer<Channel> {
 
 		private final LinkDecoder dec = new LinkDecoder();
-		private final LinkDataEncoder enc = new LinkDataEncoder();
-		private final LinkHandler lnk = new LinkHandler(localBranch, branches);
-		private final AppMsgHandler app = new AppMsgHandler(UDPNetOverlay.this);
+		private final LinkAckEncoder ackEnc = new LinkAckEncoder(branches, compact);
+		private final LinkHandler lnk = new LinkHandler(localBranch, sendWindow, (runtime != null) ? runtime.getTimer() : null, ordered, maxRetries);
+		private final AppMsgHandler app = new AppMsgHandler(inbox);
 
 		@Override
 		protected void initChannel(Channel ch) throws Exception {
@@ -165,8 +414,11 @@ public class UDPNetOverlay implements NetOverlay {
 			// Decoder for incoming messages
 			pipeline.addLast(dec);
 
-			// Encoder for outgoing data messages
-			pipeline.addLast(enc);
+			// Encoder for outgoing ack messages
+			pipeline.addLast(ackEnc);
+
+			// Encoder for outgoing data messages, batching them in frames
+			pipeline.addLast(new LinkDataEncoder(branches, frameLinger, compact));
 
 			// Link layer handler to manage link reliability
 			pipeline.addLast(lnk);
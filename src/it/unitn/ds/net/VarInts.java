@@ -0,0 +1,110 @@
+package it.unitn.ds.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Variable-length integers used by the compact codec: 7 bits for each byte,
+ * least significant group first, with the high bit set on all the bytes but
+ * the last. Signed values are zig-zag encoded so that small negative values
+ * take few bytes.
+ */
+final class VarInts {
+
+	private VarInts() {
+	}
+
+	/**
+	 * Write the int as unsigned, 1 to 5 bytes
+	 */
+	static void writeInt(ByteBuf out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Write the long as unsigned, 1 to 10 bytes
+	 */
+	static void writeLong(ByteBuf out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static void writeSignedInt(ByteBuf out, int value) {
+		writeInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	static void writeSignedLong(ByteBuf out, long value) {
+		writeLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	static int readInt(ByteBuf in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new CorruptedFrameException("Malformed variable-length int");
+	}
+
+	static long readLong(ByteBuf in) {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new CorruptedFrameException("Malformed variable-length long");
+	}
+
+	static int readSignedInt(ByteBuf in) {
+		int value = readInt(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static long readSignedLong(ByteBuf in) {
+		long value = readLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * @return Encoded size in bytes of the unsigned int
+	 */
+	static int sizeOfInt(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * @return Encoded size in bytes of the unsigned long
+	 */
+	static int sizeOfLong(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static int sizeOfSignedInt(int value) {
+		return sizeOfInt((value << 1) ^ (value >> 31));
+	}
+
+	static int sizeOfSignedLong(long value) {
+		return sizeOfLong((value << 1) ^ (value >> 63));
+	}
+}